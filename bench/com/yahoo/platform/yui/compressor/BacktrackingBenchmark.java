@@ -0,0 +1,126 @@
+/*
+ * YUI Compressor
+ * http://developer.yahoo.com/yui/compressor/
+ * Copyright (c) 2011 Yahoo! Inc.  All rights reserved.
+ * The copyrights embodied in the content of this file are licensed
+ * by Yahoo! Inc. under the BSD (revised) open source license.
+ */
+package com.yahoo.platform.yui.compressor;
+
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the pseudo-class colon and #AABBCC color rules against the regexes
+ * they replaced, on inputs made to trigger the regexes' worst case.
+ * Every line doubles the input size: the regexes take about four times
+ * longer, the scans about twice as long. The regexes also recurse per
+ * character, so run it with a large stack (e.g. -Xss64m).
+ *
+ * Usage: BacktrackingBenchmark [kilobytes to start with] [doublings]
+ */
+public final class BacktrackingBenchmark {
+
+  private static final Pattern pseudoClassPattern =
+      Pattern.compile("(^|\\})(([^\\{:])+:)+([^\\{]*\\{)");
+
+  private static final Pattern hexColorPattern = Pattern.compile("(\\=\\s*?[\"']?)?" +
+      "#([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])" +
+      "(:?\\}|[^0-9a-fA-F{][^{]*?\\})");
+
+  private BacktrackingBenchmark() {}
+
+  public static void main(String[] args) {
+    int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int doublings = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+    for (int i = 0; i < doublings; i++, kilobytes *= 2) {
+      // one selector full of colons and no "{": the regex tries every
+      // number of colon groups, each time scanning to the end
+      String selectors = repeat("a:", kilobytes * 1024);
+      // "}" without a following "{": every "}" scans to the end
+      String closed = repeat("}a:b", kilobytes * 1024);
+      // one block of colors closed at the very end: the lazy tail
+      // scans to the end for every color
+      String colors = "x{" + repeat("color:#AABBCC;", kilobytes * 1024) + "}";
+
+      if (!legacyPseudoClassColons(selectors).equals(CssWhitespaceNormalizer.findPseudoClassColons(selectors)) ||
+          !legacyPseudoClassColons(closed).equals(CssWhitespaceNormalizer.findPseudoClassColons(closed)) ||
+          !legacyShortenHexColors(colors).equals(CssCompressor.shortenHexColors(colors))) {
+        throw new IllegalStateException("scan results differ from the regexes");
+      }
+
+      System.out.println(String.format("%5d KB   selector colons: regex %6d ms, scan %4d ms" +
+          "   closed blocks: regex %6d ms, scan %4d ms   colors: regex %6d ms, scan %4d ms",
+          kilobytes,
+          time(selectors, 0), time(selectors, 1),
+          time(closed, 0), time(closed, 1),
+          time(colors, 2), time(colors, 3)));
+    }
+  }
+
+  private static long time(String css, int what) {
+    long start = System.nanoTime();
+    switch (what) {
+      case 0: legacyPseudoClassColons(css); break;
+      case 1: CssWhitespaceNormalizer.findPseudoClassColons(css); break;
+      case 2: legacyShortenHexColors(css); break;
+      default: CssCompressor.shortenHexColors(css);
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private static String repeat(String s, int length) {
+    StringBuilder sb = new StringBuilder(length + s.length());
+    while (sb.length() < length) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  private static BitSet legacyPseudoClassColons(String css) {
+    BitSet colons = new BitSet(css.length());
+    Matcher m = pseudoClassPattern.matcher(css);
+    while (m.find()) {
+      for (int i = m.start(); i < m.end(); i++) {
+        if (css.charAt(i) == ':') {
+          colons.set(i);
+        }
+      }
+    }
+    return colons;
+  }
+
+  // what CssCompressor.compress did before shortenHexColors
+  private static String legacyShortenHexColors(String css) {
+    Matcher m = hexColorPattern.matcher(css);
+    StringBuffer sb = new StringBuffer();
+    int index = 0;
+
+    while (m.find(index)) {
+
+      sb.append(css.substring(index, m.start()));
+
+      boolean isFilter = (m.group(1) != null && !"".equals(m.group(1)));
+
+      if (isFilter) {
+        sb.append(m.group(1) + "#" + m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7));
+      } else {
+        if( m.group(2).equalsIgnoreCase(m.group(3)) &&
+            m.group(4).equalsIgnoreCase(m.group(5)) &&
+            m.group(6).equalsIgnoreCase(m.group(7))) {
+          sb.append("#" + (m.group(3) + m.group(5) + m.group(7)).toLowerCase());
+        } else {
+          sb.append("#" + (m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7)).toLowerCase());
+        }
+      }
+
+      index = m.end(7);
+    }
+
+    sb.append(css.substring(index));
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * YUI Compressor
+ * http://developer.yahoo.com/yui/compressor/
+ * Copyright (c) 2011 Yahoo! Inc.  All rights reserved.
+ * The copyrights embodied in the content of this file are licensed
+ * by Yahoo! Inc. under the BSD (revised) open source license.
+ */
+package com.yahoo.platform.yui.compressor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares CssWhitespaceNormalizer against the chain of replaceAll calls
+ * it replaced, on a generated bundle of the given size.
+ *
+ * Usage: WhitespaceNormalizerBenchmark [megabytes] [iterations]
+ */
+public final class WhitespaceNormalizerBenchmark {
+
+  private static final Pattern pseudoClassPattern =
+      Pattern.compile("(^|\\})(([^\\{:])+:)+([^\\{]*\\{)");
+
+  private WhitespaceNormalizerBenchmark() {}
+
+  public static void main(String[] args) {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    String css = generate(megabytes * 1024 * 1024);
+    System.out.println(String.format("%d chars", css.length()));
+
+    String expected = legacy(css);
+    if (!expected.equals(fused(css))) {
+      throw new IllegalStateException("fused normalizer output differs from the legacy chain");
+    }
+
+    // warm up both paths before measuring
+    for (int i = 0; i < iterations; i++) {
+      legacy(css);
+      fused(css);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      legacy(css);
+    }
+    long legacyTime = (System.nanoTime() - start) / iterations;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      fused(css);
+    }
+    long fusedTime = (System.nanoTime() - start) / iterations;
+
+    System.out.println(String.format("replaceAll chain: %6d ms/op, %7.1f MB/s",
+        legacyTime / 1000000, throughput(css, legacyTime)));
+    System.out.println(String.format("fused normalizer: %6d ms/op, %7.1f MB/s",
+        fusedTime / 1000000, throughput(css, fusedTime)));
+  }
+
+  private static double throughput(String css, long nanos) {
+    return css.length() * 2 / 1048576.0 / (nanos / 1e9);
+  }
+
+  /**
+   * Rules the way they come out of the comment and string handling:
+   * indented, with media queries, zero values and pseudo-classes.
+   */
+  private static String generate(int length) {
+    StringBuilder sb = new StringBuilder(length + 1024);
+    for (int i = 0; sb.length() < length; i++) {
+      sb.append("\n/* ___YUICSSMIN_PRESERVED_TOKEN_").append(i).append("___ */ \n");
+      sb.append(".block-").append(i).append(" > .item :first-child,\n");
+      sb.append(".block-").append(i).append(" a:hover {\n");
+      sb.append("    margin : 0px 0 0 0 ;\n");
+      sb.append("    padding: 0em 10px;\n");
+      sb.append("    background : url( ___YUICSSMIN_PRESERVED_TOKEN_").append(i).append("___ ) ;\n");
+      sb.append("    color : #ffffff !important;;\n");
+      sb.append("}\n");
+      if (i % 20 == 0) {
+        sb.append("@media screen and(max-width: 640px) {\n");
+        sb.append("    .block-").append(i).append(" p:first-line { border: 0 0; }\n");
+        sb.append("}\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String fused(String css) {
+    return CssWhitespaceNormalizer.normalize(css);
+  }
+
+  // what CssCompressor.compress did before CssWhitespaceNormalizer
+  private static String legacy(String css) {
+    css = css.replaceAll("\\s+", " ");
+
+    StringBuffer sb = new StringBuffer();
+    Matcher m = pseudoClassPattern.matcher(css);
+    while (m.find()) {
+      String s = m.group();
+      s = s.replaceAll(":", "___YUICSSMIN_PSEUDOCLASSCOLON___");
+      s = s.replaceAll( "\\\\", "\\\\\\\\" ).replaceAll( "\\$", "\\\\\\$" );
+      m.appendReplacement(sb, s);
+    }
+    m.appendTail(sb);
+    css = sb.toString();
+    css = css.replaceAll("\\s+([!{};:>+\\(\\)\\],])", "$1");
+    css = css.replaceAll("___YUICSSMIN_PSEUDOCLASSCOLON___", ":");
+
+    css = css.replaceAll(":first\\-(line|letter)(\\{|,)", ":first-$1 $2");
+    css = css.replaceAll("\\*/ ", "*/");
+    css = css.replaceAll("^(.*)(@charset \"[^\"]*\";)", "$2$1");
+    css = css.replaceAll("^(\\s*@charset [^;]+;\\s*)+", "$1");
+    css = css.replaceAll("\\band\\(", "and (");
+    css = css.replaceAll("([!{}:;>+\\(\\[,])\\s+", "$1");
+    css = css.replaceAll(";+}", "}");
+    css = css.replaceAll("([\\s:])(0)(px|em|%|in|cm|mm|pc|pt|ex)", "$1$2");
+    css = css.replaceAll(":0 0 0 0(;|})", ":0$1");
+    css = css.replaceAll(":0 0 0(;|})", ":0$1");
+    css = css.replaceAll(":0 0(;|})", ":0$1");
+    return css;
+  }
+
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates inpath trees of modules importing partials and runs the whole
+ * CssCompressor.compress() over them, growing one dimension of the tree
+ * at a time while the others keep their base values:
+ *
+ *   depth    levels of imports below a module
+ *   fanout   imports per file
+ *   size     kilobytes of rules per file
+ *   share    share of imports going to partials common to all modules
+ *   cycles   share of partials also importing the module they belong to
+ *
+ * Every file in the inpath is a module, partials included, the way the
+ * directory scan treats them. For every run it prints the files in the
+ * tree, the wall time of the directory scan plus compression, the peak
+ * heap, the files read and the bytes written.
+ *
+ * Usage: ImportGraphHarness [name=value ...]
+ *   modules=10 depth=3 fanout=3 size=4 share=0.25 cycles=0   base tree
+ *   sweep=depth,fanout,size,share,cycles                       dimensions to grow
+ *   threads=1 importcachesize=64                               compressor options
+ */
+public final class ImportGraphHarness {
+
+	private static final Map<String, double[]> SWEEPS = new LinkedHashMap<String, double[]>();
+
+	static {
+		SWEEPS.put("depth", new double[] { 1, 2, 3, 4, 5 });
+		SWEEPS.put("fanout", new double[] { 1, 2, 3, 4, 5, 6 });
+		SWEEPS.put("size", new double[] { 1, 4, 16, 64 });
+		SWEEPS.put("share", new double[] { 0, 0.25, 0.5, 0.75, 1 });
+		SWEEPS.put("cycles", new double[] { 0, 0.1, 0.25, 0.5, 1 });
+	}
+
+	private final Map<String, Double> params = new LinkedHashMap<String, Double>();
+
+	private final File dir;
+
+	private Random random;
+
+	private int files;
+
+
+	private ImportGraphHarness(final Map<String, Double> params, final File dir) {
+		this.params.putAll(params);
+		this.dir = dir;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		Map<String, Double> base = new LinkedHashMap<String, Double>();
+		base.put("modules", 10.0);
+		base.put("depth", 3.0);
+		base.put("fanout", 3.0);
+		base.put("size", 4.0);
+		base.put("share", 0.25);
+		base.put("cycles", 0.0);
+		base.put("threads", 1.0);
+		base.put("importcachesize", 64.0);
+		String sweep = "depth,fanout,size,share,cycles";
+
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=value, found: " + arg);
+			}
+			String name = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+			if (name.equals("sweep")) {
+				sweep = value;
+			} else if (base.containsKey(name)) {
+				base.put(name, Double.valueOf(value));
+			} else {
+				throw new IllegalArgumentException("Unknown parameter: " + name);
+			}
+		}
+
+		System.out.println("Base tree: " + base);
+		for (String dimension : sweep.split(",")) {
+			double[] values = SWEEPS.get(dimension);
+			if (values == null) {
+				throw new IllegalArgumentException("Unknown dimension: " + dimension);
+			}
+
+			System.out.println();
+			System.out.println(String.format("%-8s %8s %10s %12s %10s %12s",
+					dimension, "files", "wall ms", "peak heap MB", "files read", "bytes out"));
+			for (double value : values) {
+				Map<String, Double> params = new LinkedHashMap<String, Double>(base);
+				params.put(dimension, value);
+				File dir = File.createTempFile("import-graph", "");
+				dir.delete();
+				try {
+					new ImportGraphHarness(params, dir).run(value);
+				} finally {
+					FileUtils.deleteDirectory(dir);
+				}
+			}
+		}
+	}
+
+	private void run(final double value) throws IOException {
+		generate();
+
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+
+		long start = System.nanoTime();
+		ConfigBuilder builder;
+		try {
+			builder = new CliConfigBuilder(new String[] {
+					"-root", dir.getPath(), "-inpath", "src", "-outpath", "out" });
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		List<Config.Module> modules = builder.getModules();
+		Config config = new Config(
+				dir.getPath(), "UTF-8", null, modules, null, null, true,
+				param("threads"), param("importcachesize"), null, false,
+				Collections.<String>emptyList(), null, null, 0, null, 0, 0, null,
+				Collections.<Precompression>emptyList(), 9, false, 0);
+		CssCompressor compressor = new CssCompressor(config);
+		compressor.compress();
+		long wallTime = System.nanoTime() - start;
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		long bytesOut = FileUtils.sizeOfDirectory(new File(dir, "out"));
+		System.out.println(String.format("%-8s %8d %10d %12.1f %10d %12d",
+				value == Math.rint(value) ? Integer.toString((int) value) : Double.toString(value),
+				files, wallTime / 1000000, peakHeap / 1048576.0,
+				compressor.getImportCache().getMisses(), bytesOut));
+	}
+
+	private int param(final String name) {
+		return params.get(name).intValue();
+	}
+
+	/**
+	 * src/layers/moduleN.css import private partials from src/partials/mN/
+	 * and shared ones from src/shared/, nested depth levels deep.
+	 */
+	private void generate() throws IOException {
+		random = new Random(42);
+		files = 0;
+		// shared partials are written once, their number matches one module's level
+		int sharedPerLevel = Math.max(param("fanout"), 1);
+		for (int level = 1; level <= param("depth"); level++) {
+			for (int i = 0; i < sharedPerLevel; i++) {
+				writeFile("shared/level" + level + "/part" + i + ".css",
+						level, "shared", null);
+			}
+		}
+
+		for (int module = 0; module < param("modules"); module++) {
+			String root = "layers/module" + module + ".css";
+			writeFile(root, 0, "m" + module, null);
+		}
+	}
+
+	/**
+	 * @param moduleRoot Root of the module the file belongs to,
+	 *                   which cycles import back, null for shared files.
+	 */
+	private void writeFile(final String path, final int level, final String owner,
+			final String moduleRoot) throws IOException {
+
+		StringBuilder css = new StringBuilder();
+		String self = path.substring(0, path.length() - ".css".length());
+		String root = moduleRoot == null && level == 0 ? path : moduleRoot;
+
+		if (level < param("depth")) {
+			for (int i = 0; i < param("fanout"); i++) {
+				String child;
+				if (owner.equals("shared") || random.nextDouble() < params.get("share")) {
+					child = "shared/level" + (level + 1) + "/part" +
+							random.nextInt(Math.max(param("fanout"), 1)) + ".css";
+				} else {
+					child = (level == 0 ? "partials/" + owner : self) + "/part" + i + ".css";
+					writeFile(child, level + 1, owner, root);
+				}
+				css.append("@import \"").append(relativize(path, child)).append("\";\n");
+			}
+		}
+		if (root != null && level > 0 && random.nextDouble() < params.get("cycles")) {
+			css.append("@import \"").append(relativize(path, root)).append("\";\n");
+		}
+
+		appendRules(css, self, params.get("size") * 1024);
+
+		FileUtils.writeStringToFile(new File(new File(dir, "src"), path), css.toString(), "UTF-8");
+		files++;
+	}
+
+	private static String relativize(final String from, final String to) {
+		return new File(from).getAbsoluteFile().getParentFile().toPath()
+				.relativize(new File(to).getAbsoluteFile().toPath())
+				.toString().replace('\\', '/');
+	}
+
+	private static void appendRules(final StringBuilder css, final String self, final double size) {
+		String name = self.replace('/', '-');
+		int start = css.length();
+		for (int i = 0; css.length() - start < size; i++) {
+			css.append('.').append(name).append("-").append(i).append(" a:hover {\n");
+			css.append("  color: #FFFFFF;\n");
+			css.append("  margin: 0px 0px 10px 0px;\n");
+			css.append("  background: url(../images/icon").append(i % 10).append(".png) no-repeat;\n");
+			css.append("}\n");
+		}
+	}
+
+}
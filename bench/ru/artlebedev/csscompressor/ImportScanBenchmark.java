@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares @import detection by a CssTokenizer pass, bare and as done by
+ * CssEngine.scan, against the former approach of matching a regex and
+ * rescanning 500 characters around every import candidate for comments.
+ *
+ * Usage: ImportScanBenchmark [imports] [license-header-kb] [iterations]
+ */
+public final class ImportScanBenchmark {
+
+	// same as CssCompressor.cssImportPattern
+	private static final Pattern importPattern = Pattern.compile(
+			"@import\\s+(?:url\\(\\s*)?[\"']?([\\w\\\\/\\-_.:?]+?\\.css)[^;$]*?(;|$)",
+			Pattern.MULTILINE);
+
+	private static final Pattern commentPattern = Pattern.compile("/\\*([\\s\\S]*?)\\*/");
+
+	private static final int MAX_COMMENT_SURROUND_LENGTH = 500;
+
+
+	private ImportScanBenchmark() {}
+
+	public static void main(final String[] args) {
+		int imports = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int headerKb = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		String css = generate(imports, headerKb);
+		System.out.println(String.format(
+				"%d imports, %d KB license header, %d chars total",
+				imports, headerKb, css.length()));
+
+		CssEngine engine = new CssEngine.Builder().build();
+
+		// warm up all paths before measuring
+		for (int i = 0; i < iterations; i++) {
+			countLegacy(css);
+			countTokenized(css);
+			countScanned(engine, css);
+		}
+
+		long start = System.nanoTime();
+		int legacyFound = 0;
+		for (int i = 0; i < iterations; i++) {
+			legacyFound = countLegacy(css);
+		}
+		long legacyTime = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		int tokenizedFound = 0;
+		for (int i = 0; i < iterations; i++) {
+			tokenizedFound = countTokenized(css);
+		}
+		long tokenizedTime = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		int scannedFound = 0;
+		for (int i = 0; i < iterations; i++) {
+			scannedFound = countScanned(engine, css);
+		}
+		long scannedTime = (System.nanoTime() - start) / iterations;
+
+		System.out.println(String.format(
+				"window rescan: %8d us/op, %d imports found",
+				legacyTime / 1000, legacyFound));
+		System.out.println(String.format(
+				"tokenizer:     %8d us/op, %d imports found",
+				tokenizedTime / 1000, tokenizedFound));
+		System.out.println(String.format(
+				"engine scan:   %8d us/op, %d imports found (expected %d)",
+				scannedTime / 1000, scannedFound, imports));
+	}
+
+	/**
+	 * A license header mentioning imports, then imports separated by
+	 * short comments, with every 10th import commented out by a comment
+	 * longer than the former 500 characters window.
+	 */
+	private static String generate(final int imports, final int headerKb) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("/*!\n");
+		while (sb.length() < headerKb * 1024) {
+			sb.append(" * Licensed under the terms below, see @import \"license.css\";\n");
+		}
+		sb.append(" */\n");
+
+		for (int i = 0; i < imports; i++) {
+			sb.append("/* partial ").append(i).append(" */\n");
+			sb.append("@import \"partials/part").append(i).append(".css\";\n");
+
+			if (i % 10 == 0) {
+				sb.append("/* disabled\n");
+				for (int j = 0; j < 12; j++) {
+					sb.append("   the following import is kept for reference only\n");
+				}
+				sb.append("@import \"partials/disabled").append(i).append(".css\";\n");
+				for (int j = 0; j < 12; j++) {
+					sb.append("   the preceding import is kept for reference only\n");
+				}
+				sb.append("*/\n");
+			}
+		}
+		sb.append(".rule { color: red; }\n");
+		return sb.toString();
+	}
+
+	private static int countLegacy(final String css) {
+		int found = 0;
+		Matcher matcher = importPattern.matcher(css);
+		while (matcher.find()) {
+			int startIdx = matcher.start(0);
+			int commentFindStartIndex = Math.max(startIdx - MAX_COMMENT_SURROUND_LENGTH, 0);
+			Matcher commentFind = commentPattern.matcher(css.substring(
+					commentFindStartIndex,
+					Math.min(startIdx + MAX_COMMENT_SURROUND_LENGTH, css.length())));
+			boolean inComment = false;
+			while (commentFind.find()) {
+				if (commentFindStartIndex + commentFind.start() < startIdx &&
+					commentFindStartIndex + commentFind.end() > startIdx) {
+					inComment = true;
+					break;
+				}
+			}
+			if (!inComment) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Counts @import keywords outside comments and strings, the lower bound
+	 * of what finding imports with the tokenizer costs.
+	 */
+	private static int countTokenized(final String css) {
+		int found = 0;
+		CssTokenizer tokenizer = new CssTokenizer(css);
+		CssTokenizer.Type type;
+		while ((type = tokenizer.next()) != null) {
+			if (type == CssTokenizer.Type.AT_KEYWORD && "import".equalsIgnoreCase(tokenizer.getValue())) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	private static int countScanned(final CssEngine engine, final String css) {
+		return engine.scan(css, null).imports.size();
+	}
+
+}
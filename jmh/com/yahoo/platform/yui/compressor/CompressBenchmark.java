@@ -0,0 +1,56 @@
+/*
+ * YUI Compressor
+ * http://developer.yahoo.com/yui/compressor/
+ * Copyright (c) 2011 Yahoo! Inc.  All rights reserved.
+ * The copyrights embodied in the content of this file are licensed
+ * by Yahoo! Inc. under the BSD (revised) open source license.
+ */
+package com.yahoo.platform.yui.compressor;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.artlebedev.csscompressor.BenchmarkCorpus;
+
+/**
+ * CssCompressor.compress over every corpus, whole stylesheets per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressBenchmark {
+
+  @Param({"framework", "data-urls", "comments", "concat-10mb"})
+  public String corpus;
+
+  private String css;
+
+  @Setup
+  public void setUp() throws IOException {
+    css = BenchmarkCorpus.forName(corpus).generate();
+  }
+
+  @Benchmark
+  public String compress() throws IOException {
+    StringWriter out = new StringWriter(css.length());
+    new CssCompressor(css).compress(out, -1);
+    return out.toString();
+  }
+
+}
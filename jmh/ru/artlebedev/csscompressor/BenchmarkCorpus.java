@@ -0,0 +1,210 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Stylesheets the JMH benchmarks run over. They are generated with a fixed
+ * seed so every run measures the same input. Real stylesheets can be used
+ * instead: with -Djmh.corpus.dir=dir the .css files under dir/framework/,
+ * dir/data-urls/ etc. are concatenated into the corpus of that name.
+ */
+public enum BenchmarkCorpus {
+
+	/** Rules the size of a CSS framework bundle, about 150 KB. */
+	FRAMEWORK("framework", 150 * 1024) {
+		@Override
+		void append(final StringBuilder sb, final Random random, final int i) {
+			appendRule(sb, random, i);
+		}
+	},
+
+	/** Icons and fonts inlined as base64 data urls, about 1 MB. */
+	DATA_URLS("data-urls", 1024 * 1024) {
+		@Override
+		void append(final StringBuilder sb, final Random random, final int i) {
+			sb.append(".icon-").append(i).append(" {\n");
+			sb.append("  background-image: url(\"data:image/png;base64,");
+			appendBase64(sb, random, 512 + random.nextInt(4096));
+			sb.append("\");\n");
+			sb.append("  background-repeat: no-repeat;\n");
+			sb.append("}\n");
+		}
+	},
+
+	/** Documented sources: license headers and comments outweigh the rules. */
+	COMMENTS("comments", 1024 * 1024) {
+		@Override
+		void append(final StringBuilder sb, final Random random, final int i) {
+			if (i % 25 == 0) {
+				sb.append("/*!\n * Component ").append(i).append('\n');
+				for (int line = 0; line < 20; line++) {
+					sb.append(" * Licensed under the MIT license, see LICENSE for details.\n");
+				}
+				sb.append(" */\n");
+			}
+			sb.append("/**\n");
+			for (int line = 0; line < 1 + random.nextInt(6); line++) {
+				sb.append(" * Describes what .block-").append(i)
+						.append(" looks like and when to use it.\n");
+			}
+			sb.append(" */\n");
+			appendRule(sb, random, i);
+		}
+	},
+
+	/** A whole site's stylesheets concatenated, about 10 MB. */
+	CONCAT_10MB("concat-10mb", 10 * 1024 * 1024) {
+		@Override
+		void append(final StringBuilder sb, final Random random, final int i) {
+			if (random.nextInt(10) == 0) {
+				COMMENTS.append(sb, random, i);
+			} else {
+				appendRule(sb, random, i);
+			}
+		}
+	};
+
+
+	private static final String[] PROPERTIES = {
+		"color: #%s", "background-color: #%s", "border: 1px solid #%s",
+		"margin: 0px 0px %dpx 0px", "padding: %dpx 0", "width: %d%%",
+		"font-size: 0.%dem", "line-height: 1.%d", "display: none",
+		"border-top: none", "background-position: 0 0",
+		"color: rgb(%d, 102, 153)", "filter: progid:DXImageTransform.Microsoft.Alpha(Opacity=%d)",
+		"background: url(../images/sprite-%d.png) no-repeat"
+	};
+
+	private static final String BASE64 =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private final String name;
+
+	private final int size;
+
+	BenchmarkCorpus(final String name, final int size) {
+		this.name = name;
+		this.size = size;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public static BenchmarkCorpus forName(final String name) {
+		for (BenchmarkCorpus corpus : values()) {
+			if (corpus.name.equals(name)) {
+				return corpus;
+			}
+		}
+		throw new IllegalArgumentException("Unknown corpus: " + name);
+	}
+
+	abstract void append(StringBuilder sb, Random random, int i);
+
+	/**
+	 * @return  The whole corpus as a single stylesheet.
+	 */
+	public String generate() throws IOException {
+		String realCorpus = readRealCorpus(name);
+		if (realCorpus != null) {
+			return realCorpus;
+		}
+
+		StringBuilder sb = new StringBuilder(size + 8192);
+		Random random = new Random(size);
+		for (int i = 0; sb.length() < size; i++) {
+			append(sb, random, i);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the corpus as a root file importing partials from another
+	 * directory, the way modules are laid out in an inpath.
+	 *
+	 * @return  Path of the root file.
+	 */
+	public String writeModule(final File dir, final int partials) throws IOException {
+		String css = generate();
+		File layers = new File(dir, "layers");
+		File partialsDir = new File(dir, "partials");
+		layers.mkdirs();
+		partialsDir.mkdirs();
+		StringBuilder root = new StringBuilder();
+
+		int start = 0;
+		for (int i = 0; i < partials; i++) {
+			int end = i == partials - 1 ? css.length() : ruleEnd(css, css.length() * (i + 1) / partials);
+			if (end <= start) {
+				continue;
+			}
+			String partialName = "part" + i + ".css";
+			FileUtils.writeStringToFile(new File(partialsDir, partialName), css.substring(start, end), "UTF-8");
+			root.append("@import url(\"../partials/").append(partialName).append("\");\n");
+			start = end;
+		}
+
+		File rootFile = new File(layers, name + ".css");
+		FileUtils.writeStringToFile(rootFile, root.toString(), "UTF-8");
+		return rootFile.getPath();
+	}
+
+	private static int ruleEnd(final String css, final int from) {
+		int end = css.indexOf("}\n", from);
+		return end < 0 ? css.length() : end + 2;
+	}
+
+	private static String readRealCorpus(final String name) throws IOException {
+		String dir = System.getProperty("jmh.corpus.dir");
+		if (dir == null || !new File(dir, name).isDirectory()) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Object file : FileUtils.listFiles(new File(dir, name), new String[] { "css" }, true)) {
+			sb.append(FileUtils.readFileToString((File) file, "UTF-8")).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static void appendRule(final StringBuilder sb, final Random random, final int i) {
+		sb.append(".block-").append(i).append(" > .item:hover,\n");
+		sb.append(".block-").append(i).append(" a:first-child {\n");
+		for (int p = 0; p < 3 + random.nextInt(6); p++) {
+			String property = PROPERTIES[random.nextInt(PROPERTIES.length)];
+			sb.append("  ");
+			if (property.contains("#%s")) {
+				sb.append(String.format(property, random.nextBoolean() ? "FFFFFF" : Integer.toHexString(0x100000 + random.nextInt(0xEFFFFF))));
+			} else if (property.contains("%")) {
+				sb.append(String.format(property, random.nextInt(100)));
+			} else {
+				sb.append(property);
+			}
+			sb.append(";\n");
+		}
+		sb.append("}\n");
+		if (i % 40 == 0) {
+			sb.append("@media screen and (max-width: 768px) {\n  .block-").append(i)
+					.append(" { display: block; }\n}\n");
+		}
+	}
+
+	private static void appendBase64(final StringBuilder sb, final Random random, final int length) {
+		for (int i = 0; i < length; i++) {
+			sb.append(BASE64.charAt(random.nextInt(BASE64.length())));
+		}
+		sb.append("==");
+	}
+
+}
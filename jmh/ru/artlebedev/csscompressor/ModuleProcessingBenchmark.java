@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The steps CssCompressor takes around the YUI compressor: inlining
+ * imports (processCssFile), rewriting urls of imported files
+ * (rewriteRelativePaths) and the replaces option (applyReplaces).
+ *
+ * The import cache is off, so every processCssFile call reads and
+ * rewrites all partials of the module the way a cold build does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModuleProcessingBenchmark {
+
+	@Param({"framework", "data-urls", "comments", "concat-10mb"})
+	public String corpus;
+
+	// how many files the corpus is split into for processCssFile
+	@Param({"50"})
+	public int partials;
+
+	private File dir;
+
+	private CssEngine engine;
+
+	private String rootFile;
+
+	private Path rootDir;
+
+	private String css;
+
+	private final Path relPath = Paths.get("..", "partials");
+
+	@Setup
+	public void setUp() throws IOException {
+		BenchmarkCorpus benchmarkCorpus = BenchmarkCorpus.forName(corpus);
+		css = benchmarkCorpus.generate();
+
+		dir = File.createTempFile("css-compressor-jmh", "");
+		dir.delete();
+		dir.mkdirs();
+		rootFile = benchmarkCorpus.writeModule(dir, partials);
+		rootDir = Paths.get(rootFile).getParent();
+
+		CssEngine.Builder builder = new CssEngine.Builder();
+		builder.addReplace("\\.\\./images/", "/static/images/");
+		builder.addReplace("\\.png\\)", ".png?v=2)");
+		builder.addReplace("#ffffff", "#fff");
+		builder.setImportCacheSize(0);
+		engine = builder.build();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Benchmark
+	public String processCssFile() throws IOException {
+		return engine.processCssFile(rootDir, rootFile, new HashSet<String>(), false,
+				new PhaseRecorder(rootFile)).content;
+	}
+
+	@Benchmark
+	public String rewriteRelativePaths() {
+		return engine.rewriteRelativePaths(css, relPath);
+	}
+
+	@Benchmark
+	public String applyReplaces() {
+		return engine.applyReplaces(css);
+	}
+
+}
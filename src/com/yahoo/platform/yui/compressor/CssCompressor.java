@@ -16,29 +16,60 @@ import java.io.Writer;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class CssCompressor {
 
-  private StringBuffer srcsb = new StringBuffer();
+  private static final String CANDIDATE_COMMENT = "___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_";
+  private static final String PRESERVED_TOKEN = "___YUICSSMIN_PRESERVED_TOKEN_";
+  private static final String PLACEHOLDER_END = "___";
+
+  private static final int COMMENT_UNDECIDED = -2;
+  private static final int COMMENT_KILLED = -1;
+
+  private static final Pattern DATA_URL_PATTERN = Pattern.compile("url\\(\\s*([\"']?)data\\:");
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+  private static final Pattern STRING_PATTERN = Pattern.compile("(\"([^\\\\\"]|\\\\.|\\\\)*\")|(\'([^\\\\\']|\\\\.|\\\\)*\')");
+  static final Pattern ALPHA_FILTER_PATTERN = Pattern.compile("(?i)progid:DXImageTransform.Microsoft.Alpha\\(Opacity=");
+
+  private final String src;
+
+  private List<CssRule> rules = CssRule.getRules();
 
   public CssCompressor(Reader in) throws IOException {
-    // Read the stream...
-    int c;
-    while ((c = in.read()) != -1) {
-      srcsb.append((char) c);
+    // Read the stream in bulk...
+    StringBuilder srcsb = new StringBuilder();
+    char[] buffer = new char[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      srcsb.append(buffer, 0, read);
     }
+    src = srcsb.toString();
+  }
+
+  // Use CSS already in memory as is, without copying it through a Reader.
+  public CssCompressor(CharSequence in) {
+    src = in.toString();
+  }
+
+  /**
+   * @param rules Rules to apply after whitespace is taken care of,
+   *              all of CssRule.getRules() by default.
+   */
+  public void setRules(List<CssRule> rules) {
+    this.rules = rules;
   }
 
   // Leave data urls alone to increase parse performance.
-  protected String extractDataUrls(String css, ArrayList preservedTokens) {
+  protected String extractDataUrls(String css, List<String> preservedTokens) {
 
     int maxIndex = css.length() - 1;
     int appendIndex = 0;
 
     StringBuffer sb = new StringBuffer();
 
-    Pattern p = Pattern.compile("url\\(\\s*([\"']?)data\\:");
-    Matcher m = p.matcher(css);
+    Matcher m = DATA_URL_PATTERN.matcher(css);
 
 
     /*
@@ -76,7 +107,7 @@ public class CssCompressor {
 
       if (foundTerminator) {
         String token = css.substring(startIndex, endIndex);
-        token = token.replaceAll("\\s+", "");
+        token = WHITESPACE_PATTERN.matcher(token).replaceAll("");
         preservedTokens.add(token);
 
         String preserver = "url(___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___)";
@@ -95,255 +126,373 @@ public class CssCompressor {
     return sb.toString();
   }
 
-  public void compress(Writer out, int linebreakpos)
-      throws IOException {
-
-    Pattern p;
-    Matcher m;
-    String css = srcsb.toString();
-
-    int startIndex = 0;
-    int endIndex = 0;
-    int i = 0;
-    int max = 0;
-    ArrayList preservedTokens = new ArrayList(0);
-    ArrayList comments = new ArrayList(0);
-    String token;
-    int totallen = css.length();
-    String placeholder;
+  /*
+   * Comments are decided on one by one in the order they appear, exactly
+   * like replacing their placeholders one at a time would do, but the whole
+   * stylesheet is copied once. A decision is remembered in decisions[i]:
+   * an index of a preserved token, or COMMENT_KILLED.
+   */
+  protected String processComments(String css, List<String> comments, List<String> preservedTokens) {
+    int max = comments.size();
+    int[] decisions = new int[max];
+    Arrays.fill(decisions, COMMENT_UNDECIDED);
+    // comments before this one are decided
+    int next = 0;
+
+    StringBuffer sb = new StringBuffer(css.length());
+    int appendIndex = 0;
+    int index = appendIndex;
+    while ((index = css.indexOf(CANDIDATE_COMMENT, index)) >= 0) {
+      int numberIndex = index + CANDIDATE_COMMENT.length();
+      int i = parsePlaceholderNumber(css, numberIndex);
+      if (i < 0 || i >= max) {
+        index = numberIndex;
+        continue;
+      }
+      int endIndex = css.indexOf(PLACEHOLDER_END, numberIndex) + PLACEHOLDER_END.length();
 
-    css = this.extractDataUrls(css, preservedTokens);
+      sb.append(css, appendIndex, index);
+      appendIndex = endIndex;
 
-    StringBuffer sb = new StringBuffer(css);
+      // comments without placeholders (they were inside strings) still
+      // take their preserved tokens, then this one is decided where it stands
+      while (next <= i) {
+        next = decideComment(next, comments, preservedTokens, decisions, next == i ? sb : null);
+      }
 
-    // collect all comment blocks...
-    while ((startIndex = sb.indexOf("/*", startIndex)) >= 0) {
-      endIndex = sb.indexOf("*/", startIndex + 2);
-      if (endIndex < 0) {
-        endIndex = totallen;
+      if (decisions[i] != COMMENT_KILLED) {
+        sb.append(PRESERVED_TOKEN).append(decisions[i]).append(PLACEHOLDER_END);
+      } else if (sb.length() >= 2 && sb.charAt(sb.length() - 2) == '/' &&
+          sb.charAt(sb.length() - 1) == '*' && css.startsWith("*/", endIndex)) {
+        // kill the comment
+        sb.setLength(sb.length() - 2);
+        appendIndex = endIndex + 2;
+      } else {
+        // not a whole comment (e.g. unterminated one), leave as is
+        sb.append(css, index, endIndex);
       }
+      index = appendIndex;
+    }
+    sb.append(css, appendIndex, css.length());
 
-      token = sb.substring(startIndex + 2, endIndex);
-      comments.add(token);
-      sb.replace(startIndex + 2, endIndex, "___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + (comments.size() - 1) + "___");
-      startIndex += 2;
+    while (next < max) {
+      next = decideComment(next, comments, preservedTokens, decisions, null);
     }
-    css = sb.toString();
 
-    // preserve strings so their content doesn't get accidentally minified
-    sb = new StringBuffer();
-    p = Pattern.compile("(\"([^\\\\\"]|\\\\.|\\\\)*\")|(\'([^\\\\\']|\\\\.|\\\\)*\')");
-    m = p.matcher(css);
-    while (m.find()) {
-      token = m.group();
-      char quote = token.charAt(0);
-      token = token.substring(1, token.length() - 1);
+    return sb.toString();
+  }
 
-      // maybe the string contains a comment-like substring?
-      // one, maybe more? put'em back then
-      if (token.indexOf("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_") >= 0) {
-        for (i = 0, max = comments.size(); i < max; i += 1) {
-          token = token.replace("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + i + "___", comments.get(i).toString());
-        }
-      }
+  /**
+   * @param collected Text preceding a placeholder of comment i with all the
+   *                  previous comments processed, null if there is no placeholder.
+   * @return  Index of the next comment to decide on.
+   */
+  private static int decideComment(int i, List<String> comments, List<String> preservedTokens,
+      int[] decisions, StringBuffer collected) {
 
-      // minify alpha opacity in filter strings
-      token = token.replaceAll("(?i)progid:DXImageTransform.Microsoft.Alpha\\(Opacity=", "alpha(opacity=");
+    String token = comments.get(i);
 
+    // ! in the first position of the comment means preserve
+    // so push to the preserved tokens while stripping the !
+    if (token.startsWith("!")) {
       preservedTokens.add(token);
-      String preserver = quote + "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___" + quote;
-      m.appendReplacement(sb, preserver);
+      decisions[i] = preservedTokens.size() - 1;
+      return i + 1;
     }
-    m.appendTail(sb);
-    css = sb.toString();
-
-
-    // strings are safe, now wrestle the comments
-    for (i = 0, max = comments.size(); i < max; i += 1) {
-
-      token = comments.get(i).toString();
-      placeholder = "___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + i + "___";
-
-      // ! in the first position of the comment means preserve
-      // so push to the preserved tokens while stripping the !
-      if (token.startsWith("!")) {
-        preservedTokens.add(token);
-        css = css.replace(placeholder,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-        continue;
-      }
 
-      // \ in the last position looks like hack for Mac/IE5
-      // shorten that to /*\*/ and the next one to /**/
-      if (token.endsWith("\\")) {
-        preservedTokens.add("\\");
-        css = css.replace(placeholder,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-        i = i + 1; // attn: advancing the loop
-        preservedTokens.add("");
-        css = css.replace("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + i + "___",  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-        continue;
+    // \ in the last position looks like hack for Mac/IE5
+    // shorten that to /*\*/ and the next one to /**/
+    if (token.endsWith("\\")) {
+      preservedTokens.add("\\");
+      decisions[i] = preservedTokens.size() - 1;
+      preservedTokens.add("");
+      if (i + 1 < decisions.length) {
+        decisions[i + 1] = preservedTokens.size() - 1;
       }
+      return i + 2;
+    }
 
-      // keep empty comments after child selectors (IE7 hack)
-      // e.g. html >/**/ body
-      if (token.length() == 0) {
-        startIndex = css.indexOf(placeholder);
-        if (startIndex > 2) {
-          if (css.charAt(startIndex - 3) == '>') {
-            preservedTokens.add("");
-            css = css.replace(placeholder,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-          }
+    // keep empty comments after child selectors (IE7 hack)
+    // e.g. html >/**/ body
+    if (token.length() == 0 && collected != null) {
+      if (collected.length() > 2) {
+        if (collected.charAt(collected.length() - 3) == '>') {
+          preservedTokens.add("");
+          decisions[i] = preservedTokens.size() - 1;
+          return i + 1;
         }
       }
-
-      // in all other cases kill the comment
-      css = css.replace("/*" + placeholder + "*/", "");
     }
 
+    // in all other cases kill the comment
+    decisions[i] = COMMENT_KILLED;
+    return i + 1;
+  }
 
-    // Normalize all whitespace strings to single spaces. Easier to work with that way.
-    css = css.replaceAll("\\s+", " ");
-
-    // Remove the spaces before the things that should not have spaces before them.
-    // But, be careful not to turn "p :link {...}" into "p:link{...}"
-    // Swap out any pseudo-class colons with the token, and then swap back.
-    sb = new StringBuffer();
-    p = Pattern.compile("(^|\\})(([^\\{:])+:)+([^\\{]*\\{)");
-    m = p.matcher(css);
-    while (m.find()) {
-      String s = m.group();
-      s = s.replaceAll(":", "___YUICSSMIN_PSEUDOCLASSCOLON___");
-      s = s.replaceAll( "\\\\", "\\\\\\\\" ).replaceAll( "\\$", "\\\\\\$" );
-      m.appendReplacement(sb, s);
+  /**
+   * Replaces every prefix + n + "___" placeholder with values.get(n)
+   * in a single pass. Text that only looks like a placeholder is kept.
+   */
+  private static String restorePlaceholders(String css, String prefix, List<String> values) {
+    int index = css.indexOf(prefix);
+    if (index < 0) {
+      return css;
     }
-    m.appendTail(sb);
-    css = sb.toString();
-    // Remove spaces before the things that should not have spaces before them.
-    css = css.replaceAll("\\s+([!{};:>+\\(\\)\\],])", "$1");
-    // bring back the colon
-    css = css.replaceAll("___YUICSSMIN_PSEUDOCLASSCOLON___", ":");
 
-    // retain space for special IE6 cases
-    css = css.replaceAll(":first\\-(line|letter)(\\{|,)", ":first-$1 $2");
+    StringBuffer sb = new StringBuffer(css.length());
+    int appendIndex = 0;
+    while (index >= 0) {
+      int numberIndex = index + prefix.length();
+      int n = parsePlaceholderNumber(css, numberIndex);
+      if (n >= 0 && n < values.size()) {
+        int endIndex = css.indexOf(PLACEHOLDER_END, numberIndex) + PLACEHOLDER_END.length();
+        for (int k = endIndex - PLACEHOLDER_END.length(); k < endIndex; k++) {
+          if (css.startsWith(prefix, k)) {
+            // placeholders glued together through underscores, which one
+            // wins depends on the order they are replaced in
+            return restorePlaceholdersOneByOne(css, prefix, values);
+          }
+        }
+        sb.append(css, appendIndex, index).append(values.get(n));
+        appendIndex = endIndex;
+        index = css.indexOf(prefix, appendIndex);
+      } else {
+        index = css.indexOf(prefix, numberIndex);
+      }
+    }
+    sb.append(css, appendIndex, css.length());
 
-    // no space after the end of a preserved comment
-    css = css.replaceAll("\\*/ ", "*/");
+    return sb.toString();
+  }
 
-    // If there is a @charset, then only allow one, and push to the top of the file.
-    css = css.replaceAll("^(.*)(@charset \"[^\"]*\";)", "$2$1");
-    css = css.replaceAll("^(\\s*@charset [^;]+;\\s*)+", "$1");
+  private static String restorePlaceholdersOneByOne(String css, String prefix, List<String> values) {
+    for (int i = 0, max = values.size(); i < max; i++) {
+      css = css.replace(prefix + i + PLACEHOLDER_END, values.get(i));
+    }
+    return css;
+  }
 
-    // Put the space back in some cases, to support stuff like
-    // @media screen and (-webkit-min-device-pixel-ratio:0){
-    css = css.replaceAll("\\band\\(", "and (");
+  /**
+   * @return  A number written at index and followed by "___" the way
+   *          placeholders are built, -1 if there's no such number.
+   */
+  private static int parsePlaceholderNumber(String css, int index) {
+    int end = index;
+    while (end < css.length() && end - index < 10 && Character.isDigit(css.charAt(end))) {
+      end++;
+    }
+    if (end == index || end - index >= 10 || !css.startsWith(PLACEHOLDER_END, end)) {
+      return -1;
+    }
+    if (css.charAt(index) == '0' && end - index > 1) {
+      // not produced by appending an int
+      return -1;
+    }
+    return Integer.parseInt(css.substring(index, end));
+  }
 
-    // Remove the spaces after the things that should not have spaces after them.
-    css = css.replaceAll("([!{}:;>+\\(\\[,])\\s+", "$1");
+  /**
+   * Does what used to be a find loop over
+   *   (\=\s*?["']?)?#([0-9a-fA-F]){6}(:?\}|[^0-9a-fA-F{][^{]*?\})
+   * i.e. lower cases and shortens #AABBCC colors followed by a "}" before any "{",
+   * but leaves alone the ones in filters (preceded by "=" and optional quote).
+   * The lazy tail rescanned up to the next brace for every color,
+   * here the next braces are remembered instead.
+   */
+  static String shortenHexColors(String css) {
+    int index = css.indexOf('#');
+    if (index < 0) {
+      return css;
+    }
 
-    // remove unnecessary semicolons
-    css = css.replaceAll(";+}", "}");
+    StringBuffer sb = new StringBuffer(css.length());
+    int appendIndex = 0;
+    int matchEnd = 0;
+    int nextOpen = -1;
+    int nextClose = -1;
+    int length = css.length();
+    for (; index >= 0; index = css.indexOf('#', index + 1)) {
+      int end = index + 7;
+      if (end >= length || !isHexColor(css, index + 1)) {
+        continue;
+      }
+      char after = css.charAt(end);
+      if (isHexDigit(after) || after == '{') {
+        continue;
+      }
+      if (nextClose < end) {
+        nextClose = css.indexOf('}', end);
+        if (nextClose < 0) {
+          break;
+        }
+      }
+      if (nextOpen < end) {
+        nextOpen = css.indexOf('{', end);
+        if (nextOpen < 0) {
+          nextOpen = length;
+        }
+      }
+      if (nextOpen < nextClose) {
+        continue;
+      }
 
-    // Replace 0(px,em,%) with 0.
-    css = css.replaceAll("([\\s:])(0)(px|em|%|in|cm|mm|pc|pt|ex)", "$1$2");
+      boolean isFilter = isFilter(css, index, matchEnd);
+      matchEnd = end;
+      if (isFilter) {
+        // Restore, as is. Compression will break filters
+        continue;
+      }
 
-    // Replace 0 0 0 0; with 0.
-    css = css.replaceAll(":0 0 0 0(;|})", ":0$1");
-    css = css.replaceAll(":0 0 0(;|})", ":0$1");
-    css = css.replaceAll(":0 0(;|})", ":0$1");
+      sb.append(css, appendIndex, index).append('#');
+      char c1 = css.charAt(index + 1);
+      char c2 = css.charAt(index + 2);
+      char c3 = css.charAt(index + 3);
+      char c4 = css.charAt(index + 4);
+      char c5 = css.charAt(index + 5);
+      char c6 = css.charAt(index + 6);
+      if (Character.toLowerCase(c1) == Character.toLowerCase(c2) &&
+          Character.toLowerCase(c3) == Character.toLowerCase(c4) &&
+          Character.toLowerCase(c5) == Character.toLowerCase(c6)) {
+
+        // #AABBCC pattern
+        sb.append(Character.toLowerCase(c2))
+          .append(Character.toLowerCase(c4))
+          .append(Character.toLowerCase(c6));
 
+      } else {
 
-    // Replace background-position:0; with background-position:0 0;
-    // same for transform-origin
-    sb = new StringBuffer();
-    p = Pattern.compile("(?i)(background-position|transform-origin|webkit-transform-origin|moz-transform-origin|o-transform-origin|ms-transform-origin):0(;|})");
-    m = p.matcher(css);
-    while (m.find()) {
-      m.appendReplacement(sb, m.group(1).toLowerCase() + ":0 0" + m.group(2));
+        // Non-compressible color, restore, but lower case.
+        sb.append(css.substring(index + 1, end).toLowerCase());
+      }
+      appendIndex = end;
     }
-    m.appendTail(sb);
-    css = sb.toString();
+    sb.append(css, appendIndex, length);
 
-    // Replace 0.6 to .6, but only when preceded by : or a white-space
-    css = css.replaceAll("(:|\\s)0+\\.(\\d+)", "$1.$2");
+    return sb.toString();
+  }
 
-    // Shorten colors from rgb(51,102,153) to #336699
-    // This makes it more likely that it'll get further compressed in the next step.
-    p = Pattern.compile("rgb\\s*\\(\\s*([0-9,\\s]+)\\s*\\)");
-    m = p.matcher(css);
-    sb = new StringBuffer();
-    while (m.find()) {
-      String[] rgbcolors = m.group(1).split(",");
-      StringBuffer hexcolor = new StringBuffer("#");
-      for (i = 0; i < rgbcolors.length; i++) {
-        int val = Integer.parseInt(rgbcolors[i]);
-        if (val < 16) {
-          hexcolor.append("0");
-        }
-        hexcolor.append(Integer.toHexString(val));
+  private static boolean isHexColor(String css, int index) {
+    for (int i = index; i < index + 6; i++) {
+      if (!isHexDigit(css.charAt(i))) {
+        return false;
       }
-      m.appendReplacement(sb, hexcolor.toString());
     }
-    m.appendTail(sb);
-    css = sb.toString();
+    return true;
+  }
 
-    // Shorten colors from #AABBCC to #ABC. Note that we want to make sure
-    // the color is not preceded by either ", " or =. Indeed, the property
-    //     filter: chroma(color="#FFFFFF");
-    // would become
-    //     filter: chroma(color="#FFF");
-    // which makes the filter break in IE.
-    // We also want to make sure we're only compressing #AABBCC patterns inside { }, not id selectors ( #FAABAC {} )
-    // We also want to avoid compressing invalid values (e.g. #AABBCCD to #ABCD)
-    p = Pattern.compile("(\\=\\s*?[\"']?)?" + "#([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])" + "(:?\\}|[^0-9a-fA-F{][^{]*?\\})");
-
-    m = p.matcher(css);
-    sb = new StringBuffer();
-    int index = 0;
+  private static boolean isHexDigit(char c) {
+    return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+  }
 
-    while (m.find(index)) {
+  /**
+   * @return  Whether the color at index is preceded by "=", whitespace
+   *          and a quote, not reaching back before the previous color (from).
+   */
+  private static boolean isFilter(String css, int index, int from) {
+    int i = index - 1;
+    if (i >= from && (css.charAt(i) == '"' || css.charAt(i) == '\'')) {
+      i--;
+    }
+    while (i >= from && CssWhitespaceNormalizer.isSpace(css.charAt(i))) {
+      i--;
+    }
+    return i >= from && css.charAt(i) == '=';
+  }
 
-      sb.append(css.substring(index, m.start()));
+  public void compress(Writer out, int linebreakpos)
+      throws IOException {
 
-      boolean isFilter = (m.group(1) != null && !"".equals(m.group(1)));
+    compress((Appendable) out, linebreakpos);
+  }
 
-      if (isFilter) {
-        // Restore, as is. Compression will break filters
-        sb.append(m.group(1) + "#" + m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7));
-      } else {
-        if( m.group(2).equalsIgnoreCase(m.group(3)) &&
-            m.group(4).equalsIgnoreCase(m.group(5)) &&
-            m.group(6).equalsIgnoreCase(m.group(7))) {
+  /**
+   * Same as compress(Writer, int) for any Appendable, e.g. a buffer reused between calls.
+   */
+  public void compress(Appendable out, int linebreakpos)
+      throws IOException {
 
-          // #AABBCC pattern
-          sb.append("#" + (m.group(3) + m.group(5) + m.group(7)).toLowerCase());
+    Matcher m;
+    String css = src;
 
-        } else {
+    int startIndex = 0;
+    int endIndex = 0;
+    int i = 0;
+    List<String> preservedTokens = new ArrayList<String>(0);
+    List<String> comments = new ArrayList<String>(0);
+    String token;
+    int totallen = css.length();
+    String placeholder;
 
-          // Non-compressible color, restore, but lower case.
-          sb.append("#" + (m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7)).toLowerCase());
-        }
+    RulePrefilter prefilter = RulePrefilter.scan(css);
+    if (prefilter.shouldRun(RulePrefilter.DATA_URLS)) {
+      css = this.extractDataUrls(css, preservedTokens);
+    }
+
+    // collect all comment blocks, replacing their contents with placeholders in one pass
+    StringBuffer sb = new StringBuffer(css.length());
+    int appendIndex = 0;
+    int searchIndex = 0;
+    // how much longer the text collected so far got than the original text
+    int shift = 0;
+    while ((startIndex = css.indexOf("/*", searchIndex)) >= 0) {
+      endIndex = css.indexOf("*/", startIndex + 2);
+      if (endIndex < 0) {
+        // unterminated comment, totallen is measured in the collected text
+        endIndex = totallen - shift;
       }
 
-      index = m.end(7);
-    }
+      token = css.substring(startIndex + 2, endIndex);
+      comments.add(token);
+      placeholder = CANDIDATE_COMMENT + (comments.size() - 1) + PLACEHOLDER_END;
 
-    sb.append(css.substring(index));
+      sb.append(css, appendIndex, startIndex + 2).append(placeholder);
+      shift += placeholder.length() - token.length();
+      appendIndex = endIndex;
+      searchIndex = endIndex;
+    }
+    sb.append(css, appendIndex, css.length());
     css = sb.toString();
 
-    // border: none -> border:0
+    // preserve strings so their content doesn't get accidentally minified
     sb = new StringBuffer();
-    p = Pattern.compile("(?i)(border|border-top|border-right|border-bottom|border-right|outline|background):none(;|})");
-    m = p.matcher(css);
+    m = STRING_PATTERN.matcher(css);
     while (m.find()) {
-      m.appendReplacement(sb, m.group(1).toLowerCase() + ":0" + m.group(2));
+      token = m.group();
+      char quote = token.charAt(0);
+      token = token.substring(1, token.length() - 1);
+
+      // maybe the string contains a comment-like substring?
+      // one, maybe more? put'em back then
+      if (token.indexOf(CANDIDATE_COMMENT) >= 0) {
+        token = restorePlaceholders(token, CANDIDATE_COMMENT, comments);
+      }
+
+      // minify alpha opacity in filter strings
+      token = ALPHA_FILTER_PATTERN.matcher(token).replaceAll("alpha(opacity=");
+
+      preservedTokens.add(token);
+      String preserver = quote + PRESERVED_TOKEN + (preservedTokens.size() - 1) + PLACEHOLDER_END + quote;
+      m.appendReplacement(sb, preserver);
     }
     m.appendTail(sb);
     css = sb.toString();
 
-    // shorter opacity IE filter
-    css = css.replaceAll("(?i)progid:DXImageTransform.Microsoft.Alpha\\(Opacity=", "alpha(opacity=");
 
-    // Remove empty rules.
-    css = css.replaceAll("[^\\}\\{/;]+\\{\\}", "");
+    // strings are safe, now wrestle the comments
+    css = this.processComments(css, comments, preservedTokens);
+
+
+    // Whitespace and punctuation, in one pass.
+    css = CssWhitespaceNormalizer.normalize(css);
+
+    // the rules below are skipped when there's nothing for them to match
+    prefilter = RulePrefilter.scan(css);
+
+    for (CssRule rule : rules) {
+      if (!rule.isAfterLineBreaks()) {
+        css = rule.run(css, prefilter);
+      }
+    }
 
     // TODO: Should this be after we re-insert tokens. These could alter the break points. However then
     // we'd need to make sure we don't break in the middle of a string etc.
@@ -365,19 +514,19 @@ public class CssCompressor {
       css = sb.toString();
     }
 
-    // Replace multiple semi-colons in a row by a single one
-    // See SF bug #1980989
-    css = css.replaceAll(";;+", ";");
+    for (CssRule rule : rules) {
+      if (rule.isAfterLineBreaks()) {
+        css = rule.run(css, prefilter);
+      }
+    }
 
     // restore preserved comments and strings
-    for(i = 0, max = preservedTokens.size(); i < max; i++) {
-      css = css.replace("___YUICSSMIN_PRESERVED_TOKEN_" + i + "___", preservedTokens.get(i).toString());
-    }
+    css = restorePlaceholders(css, PRESERVED_TOKEN, preservedTokens);
 
     // Trim the final string (for any leading or trailing white spaces)
     css = css.trim();
 
     // Write the output...
-    out.write(css);
+    out.append(css);
   }
 }
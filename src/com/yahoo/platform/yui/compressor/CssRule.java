@@ -0,0 +1,240 @@
+/*
+ * YUI Compressor
+ * http://developer.yahoo.com/yui/compressor/
+ * Copyright (c) 2011 Yahoo! Inc.  All rights reserved.
+ * The copyrights embodied in the content of this file are licensed
+ * by Yahoo! Inc. under the BSD (revised) open source license.
+ */
+package com.yahoo.platform.yui.compressor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minification rule CssCompressor applies once comments, strings and
+ * whitespace are taken care of.
+ *
+ * Rules are stateless and shared by all compressor instances, their
+ * patterns are compiled once. Every rule keeps how much time it took
+ * and how many characters it removed in total.
+ */
+public abstract class CssRule {
+
+  // Replace background-position:0; with background-position:0 0;
+  // same for transform-origin
+  static final CssRule ZERO_POSITIONS = new CssRule(RulePrefilter.ZERO_POSITIONS, false) {
+    private final Pattern pattern = Pattern.compile("(?i)(background-position|transform-origin|webkit-transform-origin|moz-transform-origin|o-transform-origin|ms-transform-origin):0(;|})");
+
+    String apply(String css, RulePrefilter prefilter) {
+      StringBuffer sb = new StringBuffer();
+      Matcher m = pattern.matcher(css);
+      while (m.find()) {
+        m.appendReplacement(sb, m.group(1).toLowerCase() + ":0 0" + m.group(2));
+      }
+      m.appendTail(sb);
+      return sb.toString();
+    }
+  };
+
+  // Replace 0.6 to .6, but only when preceded by : or a white-space
+  static final CssRule ZERO_FRACTIONS = new CssRule(RulePrefilter.ZERO_FRACTIONS, false) {
+    private final Pattern pattern = Pattern.compile("(:|\\s)0+\\.(\\d+)");
+
+    String apply(String css, RulePrefilter prefilter) {
+      return pattern.matcher(css).replaceAll("$1.$2");
+    }
+  };
+
+  // Shorten colors from rgb(51,102,153) to #336699
+  // This makes it more likely that it'll get further compressed in the next step.
+  static final CssRule RGB_COLORS = new CssRule(RulePrefilter.RGB_COLORS, false) {
+    private final Pattern pattern = Pattern.compile("rgb\\s*\\(\\s*([0-9,\\s]+)\\s*\\)");
+
+    String apply(String css, RulePrefilter prefilter) {
+      Matcher m = pattern.matcher(css);
+      StringBuffer sb = new StringBuffer();
+      while (m.find()) {
+        String[] rgbcolors = m.group(1).split(",");
+        StringBuffer hexcolor = new StringBuffer("#");
+        for (int i = 0; i < rgbcolors.length; i++) {
+          int val = Integer.parseInt(rgbcolors[i]);
+          if (val < 16) {
+            hexcolor.append("0");
+          }
+          hexcolor.append(Integer.toHexString(val));
+        }
+        m.appendReplacement(sb, hexcolor.toString());
+        prefilter.markPresent(RulePrefilter.HEX_COLORS);
+      }
+      m.appendTail(sb);
+      return sb.toString();
+    }
+  };
+
+  // Shorten colors from #AABBCC to #ABC, see CssCompressor.shortenHexColors
+  static final CssRule HEX_COLORS = new CssRule(RulePrefilter.HEX_COLORS, false) {
+    String apply(String css, RulePrefilter prefilter) {
+      return CssCompressor.shortenHexColors(css);
+    }
+  };
+
+  // border: none -> border:0
+  static final CssRule BORDER_NONE = new CssRule(RulePrefilter.BORDER_NONE, false) {
+    private final Pattern pattern = Pattern.compile("(?i)(border|border-top|border-right|border-bottom|border-right|outline|background):none(;|})");
+
+    String apply(String css, RulePrefilter prefilter) {
+      StringBuffer sb = new StringBuffer();
+      Matcher m = pattern.matcher(css);
+      while (m.find()) {
+        m.appendReplacement(sb, m.group(1).toLowerCase() + ":0" + m.group(2));
+      }
+      m.appendTail(sb);
+      return sb.toString();
+    }
+  };
+
+  // shorter opacity IE filter
+  static final CssRule ALPHA_FILTER = new CssRule(RulePrefilter.ALPHA_FILTER, false) {
+    String apply(String css, RulePrefilter prefilter) {
+      return CssCompressor.ALPHA_FILTER_PATTERN.matcher(css).replaceAll("alpha(opacity=");
+    }
+  };
+
+  // Remove empty rules.
+  static final CssRule EMPTY_RULES = new CssRule(RulePrefilter.EMPTY_RULES, false) {
+    private final Pattern pattern = Pattern.compile("[^\\}\\{/;]+\\{\\}");
+
+    String apply(String css, RulePrefilter prefilter) {
+      String result = pattern.matcher(css).replaceAll("");
+      if (result.length() != css.length()) {
+        // may have left semicolons in a row
+        prefilter.markPresent(RulePrefilter.SEMICOLONS);
+      }
+      return result;
+    }
+  };
+
+  // Replace multiple semi-colons in a row by a single one
+  // See SF bug #1980989
+  static final CssRule SEMICOLONS = new CssRule(RulePrefilter.SEMICOLONS, true) {
+    private final Pattern pattern = Pattern.compile(";;+");
+
+    String apply(String css, RulePrefilter prefilter) {
+      return pattern.matcher(css).replaceAll(";");
+    }
+  };
+
+  private static final List<CssRule> RULES = Collections.unmodifiableList(Arrays.asList(
+      ZERO_POSITIONS,
+      ZERO_FRACTIONS,
+      RGB_COLORS,
+      HEX_COLORS,
+      BORDER_NONE,
+      ALPHA_FILTER,
+      EMPTY_RULES,
+      SEMICOLONS));
+
+
+  private final int id;
+
+  private final boolean afterLineBreaks;
+
+  private final AtomicLong time = new AtomicLong();
+
+  private final AtomicLong charsSaved = new AtomicLong();
+
+  private CssRule(int id, boolean afterLineBreaks) {
+    this.id = id;
+    this.afterLineBreaks = afterLineBreaks;
+  }
+
+  /**
+   * @return  All rules, in the order they are applied in.
+   */
+  public static List<CssRule> getRules() {
+    return RULES;
+  }
+
+  /**
+   * @return  Rules without the ones named, in the order they are applied in.
+   * @throws IllegalArgumentException If there's no rule with one of the names.
+   */
+  public static List<CssRule> getRulesExcept(List<String> names) {
+    List<CssRule> rules = new ArrayList<CssRule>(RULES);
+    for (String name : names) {
+      CssRule rule = forName(name);
+      if (rule == null) {
+        throw new IllegalArgumentException("Unknown rule: " + name);
+      }
+      rules.remove(rule);
+    }
+    return Collections.unmodifiableList(rules);
+  }
+
+  /**
+   * @return  The rule named so, null if there's none.
+   */
+  public static CssRule forName(String name) {
+    for (CssRule rule : RULES) {
+      if (rule.getName().equals(name)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  abstract String apply(String css, RulePrefilter prefilter);
+
+  /**
+   * Applies the rule unless the prefilter says it can't match anything.
+   */
+  final String run(String css, RulePrefilter prefilter) {
+    if (!prefilter.shouldRun(id)) {
+      return css;
+    }
+    long start = System.nanoTime();
+    String result = apply(css, prefilter);
+    time.addAndGet(System.nanoTime() - start);
+    charsSaved.addAndGet(css.length() - result.length());
+    return result;
+  }
+
+  /**
+   * @return  Whether the rule is applied after long lines are broken.
+   */
+  boolean isAfterLineBreaks() {
+    return afterLineBreaks;
+  }
+
+  public String getName() {
+    return RulePrefilter.getRuleName(id);
+  }
+
+  public long getRuns() {
+    return RulePrefilter.getRuns(id);
+  }
+
+  public long getSkips() {
+    return RulePrefilter.getSkips(id);
+  }
+
+  /**
+   * @return  Time spent applying the rule, in nanoseconds.
+   */
+  public long getTime() {
+    return time.get();
+  }
+
+  /**
+   * @return  Characters removed by the rule (negative if it added more than removed).
+   */
+  public long getCharsSaved() {
+    return charsSaved.get();
+  }
+
+}
@@ -0,0 +1,538 @@
+/*
+ * YUI Compressor
+ * http://developer.yahoo.com/yui/compressor/
+ * Copyright (c) 2011 Yahoo! Inc.  All rights reserved.
+ * The copyrights embodied in the content of this file are licensed
+ * by Yahoo! Inc. under the BSD (revised) open source license.
+ */
+package com.yahoo.platform.yui.compressor;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * Whitespace and punctuation rules of CssCompressor done in one pass.
+ *
+ * Every rule used to be a replaceAll over the whole stylesheet. Here each rule
+ * is a small streaming stage that sees exactly what its regex used to see,
+ * i.e. the output of the previous rule, and stages are chained so characters
+ * flow through all of them in one go:
+ *
+ *   \s+                                        -> " "
+ *   \s+([!{};:>+\(\)\],])                      -> "$1"  (except pseudo-class colons)
+ *   :first\-(line|letter)(\{|,)                -> ":first-$1 $2"
+ *   \*\/ (space)                               -> "*\/"
+ *   @charset rules                             (only when there is a @charset)
+ *   \band\(                                    -> "and ("
+ *   ([!{}:;>+\(\[,])\s+                        -> "$1"
+ *   ;+}                                        -> "}"
+ *   ([\s:])(0)(px|em|%|in|cm|mm|pc|pt|ex)      -> "$1$2"
+ *   :0 0 0 0(;|}), :0 0 0(;|}), :0 0(;|})      -> ":0$1"
+ *
+ * Moving @charset to the top needs the whole preceding text, so when
+ * a stylesheet has one, the stages before and after it run as two passes.
+ */
+final class CssWhitespaceNormalizer {
+
+  private static final Pattern charsetToTopPattern =
+      Pattern.compile("^(.*)(@charset \"[^\"]*\";)");
+
+  private static final Pattern charsetDuplicatesPattern =
+      Pattern.compile("^(\\s*@charset [^;]+;\\s*)+");
+
+  private CssWhitespaceNormalizer() {}
+
+  static String normalize(String css) {
+    BitSet pseudoClassColons = findPseudoClassColons(css);
+    Sink sink = new Sink(css.length());
+
+    if (css.indexOf("@charset") < 0) {
+      Stage stages = new FirstLineStage(new CommentEndStage(afterCharset(sink)));
+      removeSpaces(css, pseudoClassColons, stages);
+      return sink.toString();
+    }
+
+    Stage stages = new FirstLineStage(new CommentEndStage(sink));
+    removeSpaces(css, pseudoClassColons, stages);
+    css = sink.toString();
+
+    // If there is a @charset, then only allow one, and push to the top of the file.
+    css = charsetToTopPattern.matcher(css).replaceAll("$2$1");
+    css = charsetDuplicatesPattern.matcher(css).replaceAll("$1");
+
+    sink = new Sink(css.length());
+    stages = afterCharset(sink);
+    for (int i = 0, length = css.length(); i < length; i++) {
+      stages.put(css.charAt(i));
+    }
+    stages.finish();
+    return sink.toString();
+  }
+
+  /**
+   * Finds the colons which spaces in front of must be kept
+   * (e.g. "p :link {...}" must not become "p:link{...}").
+   *
+   * These are the colons matched by (^|\})(([^\{:])+:)+([^\{]*\{),
+   * i.e. all colons between the start or a "}" and the next "{", provided
+   * the selector does not start with a colon. The regex backtracks
+   * to the end of the stylesheet for every "}" not followed by a "{",
+   * this scan remembers the next "{" and ":" instead.
+   */
+  static BitSet findPseudoClassColons(String css) {
+    BitSet colons = new BitSet(css.length());
+    int length = css.length();
+    int nextBrace = -1;
+    int nextColon = -1;
+    int start = 0;
+    while (start < length) {
+      // a selector starts at the beginning, or after a "}"
+      int selector;
+      if (start == 0) {
+        selector = 0;
+      } else {
+        int close = css.indexOf('}', start);
+        if (close < 0) {
+          break;
+        }
+        selector = close + 1;
+      }
+      start = selector == 0 ? 1 : selector;
+
+      if (nextBrace < selector) {
+        nextBrace = css.indexOf('{', selector);
+        if (nextBrace < 0) {
+          break;
+        }
+      }
+      if (nextColon < selector) {
+        nextColon = css.indexOf(':', selector);
+        if (nextColon < 0) {
+          break;
+        }
+      }
+
+      if (selector < length && nextColon < nextBrace &&
+          css.charAt(selector) != ':' && css.charAt(selector) != '{') {
+        for (int colon = nextColon; colon >= 0 && colon < nextBrace; colon = css.indexOf(':', colon + 1)) {
+          colons.set(colon);
+        }
+        start = nextBrace + 1;
+      }
+    }
+    return colons;
+  }
+
+  private static Stage afterCharset(Stage sink) {
+    return new AndParenthesisStage(
+        new SpaceAfterStage(
+            new SemicolonsStage(
+                new ZeroUnitsStage(
+                    new ZeroValuesStage(sink)))));
+  }
+
+  /**
+   * Normalizes all whitespace strings to single spaces and removes spaces
+   * before the things that should not have spaces before them,
+   * but not before pseudo-class colons.
+   */
+  private static void removeSpaces(String css, BitSet pseudoClassColons, Stage next) {
+    boolean space = false;
+    for (int i = 0, length = css.length(); i < length; i++) {
+      char c = css.charAt(i);
+      if (isSpace(c)) {
+        space = true;
+        continue;
+      }
+
+      if (space) {
+        space = false;
+        boolean removable;
+        switch (c) {
+          case '!': case '{': case '}': case ';': case '>': case '+':
+          case '(': case ')': case ']': case ',':
+            removable = true;
+            break;
+          case ':':
+            removable = !pseudoClassColons.get(i);
+            break;
+          default:
+            removable = false;
+        }
+        if (!removable) {
+          next.put(' ');
+        }
+      }
+      next.put(c);
+    }
+
+    if (space) {
+      next.put(' ');
+    }
+    next.finish();
+  }
+
+  // \s of java.util.regex
+  static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+
+  private abstract static class Stage {
+
+    final Stage next;
+
+    Stage(Stage next) {
+      this.next = next;
+    }
+
+    abstract void put(char c);
+
+    void finish() {
+      next.finish();
+    }
+
+  }
+
+
+  private static final class Sink extends Stage {
+
+    private final StringBuilder sb;
+
+    Sink(int capacity) {
+      super(null);
+      sb = new StringBuilder(capacity);
+    }
+
+    void put(char c) {
+      sb.append(c);
+    }
+
+    void finish() {
+    }
+
+    public String toString() {
+      return sb.toString();
+    }
+
+  }
+
+
+  /**
+   * Retains space for special IE6 cases: :first-line{ and :first-letter{.
+   */
+  private static final class FirstLineStage extends Stage {
+
+    // last characters seen, enough for ":first-letter"
+    private final char[] tail = new char[13];
+    private int seen;
+
+    FirstLineStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      if ((c == '{' || c == ',') && (endsWith(":first-line") || endsWith(":first-letter"))) {
+        next.put(' ');
+      }
+      tail[seen++ % tail.length] = c;
+      next.put(c);
+    }
+
+    private boolean endsWith(String s) {
+      int length = s.length();
+      if (seen < length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (tail[(seen - length + i) % tail.length] != s.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  }
+
+
+  /**
+   * No space after the end of a preserved comment.
+   */
+  private static final class CommentEndStage extends Stage {
+
+    private char beforeLast;
+    private char last;
+
+    CommentEndStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      boolean drop = c == ' ' && beforeLast == '*' && last == '/';
+      beforeLast = last;
+      last = c;
+      if (!drop) {
+        next.put(c);
+      }
+    }
+
+  }
+
+
+  /**
+   * Puts the space back in "and (", to support stuff like
+   * "@media screen and (-webkit-min-device-pixel-ratio:0){".
+   * The word boundary before "and" follows java.util.regex \b,
+   * including its treatment of non-spacing marks and surrogate pairs.
+   */
+  private static final class AndParenthesisStage extends Stage {
+
+    private char last1;
+    private char last2;
+    private char last3;
+    private int seen;
+    // whether \b's left side is a word character at the position after last1, last2, last3
+    private boolean wordAfter1;
+    private boolean wordAfter2;
+    private boolean wordAfter3;
+    private boolean wordAfter4;
+    // whether the non-spacing marks at the end follow a letter or digit
+    private boolean markBase;
+
+    AndParenthesisStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      if (c == '(' && seen >= 3 && last3 == 'a' && last2 == 'n' && last1 == 'd' &&
+          !(seen > 3 && wordAfter4)) {
+        next.put(' ');
+      }
+      next.put(c);
+
+      int codePoint = c;
+      if (Character.isLowSurrogate(c) && seen > 0 && Character.isHighSurrogate(last1)) {
+        codePoint = Character.toCodePoint(last1, c);
+      }
+      boolean mark = isMark(c);
+      if (mark && !(seen > 0 && isMark(last1))) {
+        markBase = seen > 0 && !Character.isSurrogate(last1) && Character.isLetterOrDigit(last1);
+      }
+
+      wordAfter4 = wordAfter3;
+      wordAfter3 = wordAfter2;
+      wordAfter2 = wordAfter1;
+      wordAfter1 = codePoint == '_' || Character.isLetterOrDigit(codePoint) || mark && markBase;
+      last3 = last2;
+      last2 = last1;
+      last1 = c;
+      seen++;
+    }
+
+    private static boolean isMark(char c) {
+      return Character.getType(c) == Character.NON_SPACING_MARK;
+    }
+
+  }
+
+
+  /**
+   * Removes the spaces after the things that should not have spaces after them.
+   */
+  private static final class SpaceAfterStage extends Stage {
+
+    private char last;
+    private boolean dropping;
+
+    SpaceAfterStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      boolean space = isSpace(c);
+      if (space && (dropping || isPunctuation(last))) {
+        dropping = true;
+      } else {
+        dropping = false;
+        next.put(c);
+      }
+      last = c;
+    }
+
+    private static boolean isPunctuation(char c) {
+      switch (c) {
+        case '!': case '{': case '}': case ':': case ';': case '>': case '+':
+        case '(': case '[': case ',':
+          return true;
+        default:
+          return false;
+      }
+    }
+
+  }
+
+
+  /**
+   * Removes unnecessary semicolons.
+   */
+  private static final class SemicolonsStage extends Stage {
+
+    private int semicolons;
+
+    SemicolonsStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      if (c == ';') {
+        semicolons++;
+        return;
+      }
+      if (c != '}') {
+        flush();
+      }
+      semicolons = 0;
+      next.put(c);
+    }
+
+    void finish() {
+      flush();
+      next.finish();
+    }
+
+    private void flush() {
+      for (; semicolons > 0; semicolons--) {
+        next.put(';');
+      }
+    }
+
+  }
+
+
+  /**
+   * Replaces 0(px,em,%) with 0.
+   */
+  private static final class ZeroUnitsStage extends Stage {
+
+    private char last;
+    // 0 nothing held back, 1 "0", 2 "0" and the first letter of a unit
+    private int held;
+    private char unitStart;
+
+    ZeroUnitsStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      if (held == 1) {
+        if (c == '%') {
+          next.put('0');
+          held = 0;
+          last = c;
+          return;
+        }
+        if (c == 'p' || c == 'e' || c == 'i' || c == 'c' || c == 'm') {
+          unitStart = c;
+          held = 2;
+          last = c;
+          return;
+        }
+        flush();
+      } else if (held == 2) {
+        if (isUnit(unitStart, c)) {
+          next.put('0');
+          held = 0;
+          last = c;
+          return;
+        }
+        flush();
+      }
+
+      if (c == '0' && (last == ':' || isSpace(last))) {
+        held = 1;
+      } else {
+        next.put(c);
+      }
+      last = c;
+    }
+
+    void finish() {
+      flush();
+      next.finish();
+    }
+
+    private void flush() {
+      if (held >= 1) {
+        next.put('0');
+      }
+      if (held == 2) {
+        next.put(unitStart);
+      }
+      held = 0;
+    }
+
+    private static boolean isUnit(char first, char second) {
+      switch (first) {
+        case 'p': return second == 'x' || second == 'c' || second == 't';
+        case 'e': return second == 'm' || second == 'x';
+        case 'i': return second == 'n';
+        case 'c': return second == 'm';
+        case 'm': return second == 'm';
+        default: return false;
+      }
+    }
+
+  }
+
+
+  /**
+   * Replaces 0 0 0 0; (and 0 0 0; and 0 0;) with 0.
+   */
+  private static final class ZeroValuesStage extends Stage {
+
+    // the part of ":0 0 0 0" held back so far
+    private static final String VALUES = ":0 0 0 0";
+    private int held;
+
+    ZeroValuesStage(Stage next) {
+      super(next);
+    }
+
+    void put(char c) {
+      if (held > 0) {
+        if (held < VALUES.length() && c == VALUES.charAt(held)) {
+          held++;
+          return;
+        }
+        if ((c == ';' || c == '}') && held >= 4 && held % 2 == 0) {
+          held = 0;
+          next.put(':');
+          next.put('0');
+          next.put(c);
+          return;
+        }
+        flush();
+      }
+
+      if (c == ':') {
+        held = 1;
+      } else {
+        next.put(c);
+      }
+    }
+
+    void finish() {
+      flush();
+      next.finish();
+    }
+
+    private void flush() {
+      for (int i = 0; i < held; i++) {
+        next.put(VALUES.charAt(i));
+      }
+      held = 0;
+    }
+
+  }
+
+}
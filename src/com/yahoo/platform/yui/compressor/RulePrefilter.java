@@ -0,0 +1,156 @@
+/*
+ * YUI Compressor
+ * http://developer.yahoo.com/yui/compressor/
+ * Copyright (c) 2011 Yahoo! Inc.  All rights reserved.
+ * The copyrights embodied in the content of this file are licensed
+ * by Yahoo! Inc. under the BSD (revised) open source license.
+ */
+package com.yahoo.platform.yui.compressor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells which CssCompressor rules can match at all, so the ones that can't
+ * are skipped instead of scanning and copying the whole stylesheet.
+ *
+ * Every rule has trigger literals, one of which has to be in any text
+ * the rule's regex matches. They are all looked for in one pass, ignoring
+ * case. A rule whose replacement may bring in a trigger of a later rule
+ * (e.g. rgb() becoming a #hex color) marks that trigger as present.
+ *
+ * How many times each rule ran and was skipped is counted across all
+ * compressor instances.
+ */
+public final class RulePrefilter {
+
+  static final int DATA_URLS = 0;
+  static final int ZERO_POSITIONS = 1;
+  static final int ZERO_FRACTIONS = 2;
+  static final int RGB_COLORS = 3;
+  static final int HEX_COLORS = 4;
+  static final int BORDER_NONE = 5;
+  static final int ALPHA_FILTER = 6;
+  static final int EMPTY_RULES = 7;
+  static final int SEMICOLONS = 8;
+
+  private static final String[] NAMES = {
+    "data-urls",
+    "zero-positions",
+    "zero-fractions",
+    "rgb-colors",
+    "hex-colors",
+    "border-none",
+    "alpha-filter",
+    "empty-rules",
+    "semicolons"
+  };
+
+  // lower case
+  private static final String[][] TRIGGERS = {
+    { "data:" },
+    { "background-position:0", "transform-origin:0" },
+    { "0." },
+    { "rgb" },
+    { "#" },
+    { ":none" },
+    { "progid:dximagetransform" },
+    { "{}" },
+    { ";;" }
+  };
+
+  // rules by the first character of their triggers
+  private static final int[][] BY_FIRST_CHAR = new int[128][];
+
+  static {
+    for (int c = 0; c < BY_FIRST_CHAR.length; c++) {
+      int count = 0;
+      int[] rules = new int[TRIGGERS.length];
+      for (int rule = 0; rule < TRIGGERS.length; rule++) {
+        for (int i = 0; i < TRIGGERS[rule].length; i++) {
+          if (Character.toLowerCase((char) c) == TRIGGERS[rule][i].charAt(0)) {
+            rules[count++] = rule;
+            break;
+          }
+        }
+      }
+      if (count > 0) {
+        int[] trimmed = new int[count];
+        System.arraycopy(rules, 0, trimmed, 0, count);
+        BY_FIRST_CHAR[c] = trimmed;
+      }
+    }
+  }
+
+  private static final AtomicLongArray runs = new AtomicLongArray(NAMES.length);
+  private static final AtomicLongArray skips = new AtomicLongArray(NAMES.length);
+
+  private final boolean[] present = new boolean[NAMES.length];
+
+  private RulePrefilter() {}
+
+  static RulePrefilter scan(String css) {
+    RulePrefilter prefilter = new RulePrefilter();
+    int missing = NAMES.length;
+    for (int i = 0, length = css.length(); i < length && missing > 0; i++) {
+      char c = css.charAt(i);
+      int[] rules = c < BY_FIRST_CHAR.length ? BY_FIRST_CHAR[c] : null;
+      if (rules == null) {
+        continue;
+      }
+      for (int r = 0; r < rules.length; r++) {
+        int rule = rules[r];
+        if (!prefilter.present[rule] && startsWithTrigger(css, i, rule)) {
+          prefilter.present[rule] = true;
+          missing--;
+        }
+      }
+    }
+    return prefilter;
+  }
+
+  private static boolean startsWithTrigger(String css, int index, int rule) {
+    for (int i = 0; i < TRIGGERS[rule].length; i++) {
+      String trigger = TRIGGERS[rule][i];
+      if (css.regionMatches(true, index, trigger, 0, trigger.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return  Whether the rule has to run, counting it as run or skipped.
+   */
+  boolean shouldRun(int rule) {
+    if (present[rule]) {
+      runs.incrementAndGet(rule);
+      return true;
+    }
+    skips.incrementAndGet(rule);
+    return false;
+  }
+
+  /**
+   * Makes the rule run, for a replacement that may have brought in its trigger.
+   */
+  void markPresent(int rule) {
+    present[rule] = true;
+  }
+
+  public static int getRuleCount() {
+    return NAMES.length;
+  }
+
+  public static String getRuleName(int rule) {
+    return NAMES[rule];
+  }
+
+  public static long getRuns(int rule) {
+    return runs.get(rule);
+  }
+
+  public static long getSkips(int rule) {
+    return skips.get(rule);
+  }
+
+}
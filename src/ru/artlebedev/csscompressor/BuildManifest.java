@@ -0,0 +1,309 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted record of what every module was built from, used by incremental
+ * builds to skip modules whose whole import closure didn't change.
+ *
+ * For each module the manifest keeps its output path and a stamp (size,
+ * modification time and content hash) of the module input and of every file
+ * it imports transitively. A dependency is considered unchanged if its size
+ * and modification time match, or failing that, if its content hash matches.
+ * A manifest written with different output affecting options is ignored.
+ *
+ * Stamps are taken after modules are built, with the hash of the content
+ * a module was built from. A file changed after it was read gets no
+ * modification time, so the next build compares its hash and finds it
+ * changed.
+ *
+ * Text format, one record per line, fields separated by tabs:
+ *   config  fingerprint
+ *   module  input  output
+ *   dep     size  mtime  hash  canonical-path
+ * where dep lines belong to a preceding module line.
+ */
+final class BuildManifest {
+
+	static final String FILE_NAME = ".css-compressor.manifest";
+
+	private static final String HEADER = "# css-compressor manifest 1";
+
+	private static final String CHARSET = "UTF-8";
+
+
+	private final File file;
+
+	private final String fingerprint;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	// stamps computed during this build, so every file is hashed once
+	private final Map<String, FileStamp> currentStamps =
+			new ConcurrentHashMap<String, FileStamp>();
+
+
+	private BuildManifest(final File file, final String fingerprint) {
+		this.file = file;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Reads a manifest from disk. A missing, unreadable or outdated manifest
+	 * results in an empty one, so every module is built.
+	 */
+	static BuildManifest load(final String path, final String fingerprint) {
+		BuildManifest manifest = new BuildManifest(new File(path), fingerprint);
+		try {
+			manifest.read();
+		} catch (FileNotFoundException e) {
+			manifest.entries.clear();
+		} catch (IOException e) {
+			System.out.println("Unable to read build manifest " + path +
+					", building all modules: " + e.getMessage());
+			manifest.entries.clear();
+		} catch (RuntimeException e) {
+			System.out.println("Build manifest " + path +
+					" is corrupted, building all modules");
+			manifest.entries.clear();
+		}
+		return manifest;
+	}
+
+	List<Config.Module> getOutdatedModules(final List<Config.Module> modules) {
+		List<Config.Module> outdated = new ArrayList<Config.Module>();
+		for (Config.Module module : modules) {
+			if (!isUpToDate(module)) {
+				outdated.add(module);
+			}
+		}
+		return outdated;
+	}
+
+	boolean isUpToDate(final Config.Module module) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(module.input);
+		}
+		if (entry == null || !entry.outputPath.equals(module.outputPath) ||
+				!new File(module.outputPath).isFile()) {
+			return false;
+		}
+
+		for (Map.Entry<String, FileStamp> dependency : entry.dependencies.entrySet()) {
+			if (!isUnchanged(dependency.getKey(), dependency.getValue())) {
+				return false;
+			}
+			FileStamp currentStamp = currentStamps.get(dependency.getKey());
+			if (currentStamp != null) {
+				// touched but not changed, remember a new mtime to not hash it again
+				dependency.setValue(currentStamp);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records stamps of the files a module was built from. A file whose
+	 * content differs from what the module read is stamped with the hash
+	 * of what was read and no modification time, so the module is built
+	 * again next time unless the file is changed back.
+	 */
+	void update(final ModuleResult result) throws IOException {
+		Entry entry = new Entry(result.module.outputPath);
+		for (String dependency : result.dependencies) {
+			FileStamp stamp = getCurrentStamp(dependency);
+			String readHash = result.hashes.get(dependency);
+			if (readHash != null && !readHash.equals(stamp.hash)) {
+				stamp = new FileStamp(stamp.size, -1, readHash);
+			}
+			entry.dependencies.put(dependency, stamp);
+		}
+		synchronized (entries) {
+			entries.put(result.module.input, entry);
+		}
+	}
+
+	/**
+	 * Forgets modules which are not built anymore.
+	 */
+	void retainModules(final List<Config.Module> modules) {
+		Set<String> inputs = new HashSet<String>();
+		for (Config.Module module : modules) {
+			inputs.add(module.input);
+		}
+		synchronized (entries) {
+			entries.keySet().retainAll(inputs);
+		}
+	}
+
+	void save() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(HEADER).append('\n');
+		sb.append("config\t").append(fingerprint).append('\n');
+
+		synchronized (entries) {
+			for (Map.Entry<String, Entry> module : entries.entrySet()) {
+				Entry entry = module.getValue();
+				sb.append("module\t").append(module.getKey())
+						.append('\t').append(entry.outputPath).append('\n');
+
+				for (Map.Entry<String, FileStamp> dependency : entry.dependencies.entrySet()) {
+					FileStamp stamp = dependency.getValue();
+					sb.append("dep\t").append(stamp.size)
+							.append('\t').append(stamp.lastModified)
+							.append('\t').append(stamp.hash)
+							.append('\t').append(dependency.getKey()).append('\n');
+				}
+			}
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File tempFile = new File(parent, file.getName() + ".tmp");
+		Utils.writeToFile(tempFile.getPath(), sb.toString(), CHARSET);
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void read() throws IOException {
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			if (!HEADER.equals(reader.readLine())) {
+				return;
+			}
+
+			String[] config = reader.readLine().split("\t", -1);
+			if (!config[0].equals("config") || !config[1].equals(fingerprint)) {
+				// built with other options, every module has to be rebuilt
+				return;
+			}
+
+			Entry entry = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals("module")) {
+					entry = new Entry(fields[2]);
+					entries.put(fields[1], entry);
+				} else if (fields[0].equals("dep") && entry != null) {
+					entry.dependencies.put(fields[4], new FileStamp(
+							Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private boolean isUnchanged(final String path, final FileStamp stamp) {
+		File dependency = new File(path);
+		long size = dependency.length();
+		long lastModified = dependency.lastModified();
+		if (lastModified == 0) {
+			// deleted or unreadable
+			return false;
+		}
+		if (size == stamp.size && lastModified == stamp.lastModified) {
+			return true;
+		}
+		if (size != stamp.size) {
+			return false;
+		}
+
+		// touched but maybe not changed
+		try {
+			return getCurrentStamp(path).hash.equals(stamp.hash);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private FileStamp getCurrentStamp(final String path) throws IOException {
+		FileStamp stamp = currentStamps.get(path);
+		File dependency = new File(path);
+		long size = dependency.length();
+		long lastModified = dependency.lastModified();
+		if (stamp == null || stamp.size != size || stamp.lastModified != lastModified) {
+			stamp = new FileStamp(size, lastModified, hashFile(dependency));
+			currentStamps.put(path, stamp);
+		}
+		return stamp;
+	}
+
+	private static String hashFile(final File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		InputStream stream = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			stream.close();
+		}
+
+		return Utils.toHex(digest.digest());
+	}
+
+
+
+	private final static class Entry {
+
+		final String outputPath;
+		final Map<String, FileStamp> dependencies = new LinkedHashMap<String, FileStamp>();
+
+		Entry(final String outputPath) {
+			this.outputPath = outputPath;
+		}
+
+	}
+
+
+	private final static class FileStamp {
+
+		final long size;
+		final long lastModified;
+		final String hash;
+
+		FileStamp(final long size, final long lastModified, final String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Phases of a whole build written as a JSON report:
+ *
+ *   {
+ *     "wallTimeMs": 1234,
+ *     "threads": 4,
+ *     "totals": {"read": {...}, "imports": {...}, ...},
+ *     "build": {"directory-scan": {...}},
+ *     "modules": [
+ *       {"input": "...", "output": "...", "cpuTimeMs": 12.5,
+ *        "phases": {"read": {...}, ...}},
+ *       ...
+ *     ]
+ *   }
+ *
+ * where every phase is
+ *
+ *   {"count": 3, "timeMs": 1.25, "in": 2048, "out": 1024, "allocatedBytes": 65536}
+ *
+ * see PhaseRecorder for what the numbers mean. Phases that didn't run
+ * are left out.
+ */
+final class BuildMetrics {
+
+	private static final String CHARSET = "UTF-8";
+
+	private final List<ModuleResult> results;
+
+	private final long wallTime;
+
+	private final int threads;
+
+	private PhaseRecorder buildPhases;
+
+
+	/**
+	 * @param wallTime  Nanoseconds compressing of all modules took.
+	 */
+	BuildMetrics(final List<ModuleResult> results, final long wallTime, final int threads) {
+		this.results = new ArrayList<ModuleResult>(results);
+		this.wallTime = wallTime;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return  Results of modules compressed by the build.
+	 */
+	List<ModuleResult> getResults() {
+		return results;
+	}
+
+	/**
+	 * @param buildPhases  Phases not belonging to any module, i.e. the directory scan.
+	 */
+	void setBuildPhases(final PhaseRecorder buildPhases) {
+		this.buildPhases = buildPhases;
+	}
+
+	void write(final String path) throws IOException {
+		Utils.writeToFile(path, toJson(), CHARSET);
+	}
+
+	String toJson() {
+		List<PhaseRecorder> recorders = new ArrayList<PhaseRecorder>();
+		if (buildPhases != null) {
+			recorders.add(buildPhases);
+		}
+		for (ModuleResult result : results) {
+			recorders.add(result.phases);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"wallTimeMs\": ").append(wallTime / 1000000).append(",\n");
+		sb.append("  \"threads\": ").append(threads).append(",\n");
+
+		sb.append("  \"totals\": ");
+		appendPhases(sb, recorders);
+		sb.append(",\n");
+
+		if (buildPhases != null) {
+			sb.append("  \"build\": ");
+			appendPhases(sb, buildPhases);
+			sb.append(",\n");
+		}
+
+		sb.append("  \"modules\": [");
+		for (int i = 0; i < results.size(); i++) {
+			ModuleResult result = results.get(i);
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("    {\"input\": ");
+			Utils.appendJsonString(sb, result.module.input);
+			sb.append(", \"output\": ");
+			Utils.appendJsonString(sb, result.module.outputPath);
+			sb.append(", \"cpuTimeMs\": ");
+			appendMillis(sb, result.cpuTime);
+			sb.append(",\n     \"phases\": ");
+			appendPhases(sb, result.phases);
+			sb.append("}");
+		}
+		sb.append(results.isEmpty() ? "]\n" : "\n  ]\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static void appendPhases(final StringBuilder sb, final PhaseRecorder recorder) {
+		List<PhaseRecorder> recorders = new ArrayList<PhaseRecorder>();
+		recorders.add(recorder);
+		appendPhases(sb, recorders);
+	}
+
+	/**
+	 * Appends sums of phases over all recorders.
+	 */
+	private static void appendPhases(final StringBuilder sb, final List<PhaseRecorder> recorders) {
+		sb.append('{');
+		boolean first = true;
+		for (BuildPhase phase : BuildPhase.values()) {
+			long count = 0;
+			long time = 0;
+			long in = 0;
+			long out = 0;
+			long allocated = 0;
+			for (PhaseRecorder recorder : recorders) {
+				count += recorder.getCount(phase);
+				time += recorder.getTime(phase);
+				in += recorder.getIn(phase);
+				out += recorder.getOut(phase);
+				long recorderAllocated = recorder.getAllocated(phase);
+				allocated = allocated < 0 || recorderAllocated < 0 ? -1 : allocated + recorderAllocated;
+			}
+			if (count == 0) {
+				continue;
+			}
+
+			sb.append(first ? "" : ", ");
+			first = false;
+			Utils.appendJsonString(sb, phase.getReportName());
+			sb.append(": {\"count\": ").append(count);
+			sb.append(", \"timeMs\": ");
+			appendMillis(sb, time);
+			sb.append(", \"in\": ").append(in);
+			sb.append(", \"out\": ").append(out);
+			sb.append(", \"allocatedBytes\": ").append(allocated);
+			sb.append('}');
+		}
+		sb.append('}');
+	}
+
+	private static void appendMillis(final StringBuilder sb, final long nanos) {
+		if (nanos < 0) {
+			sb.append(-1);
+		} else {
+			sb.append(String.format(Locale.ROOT, "%d.%03d", nanos / 1000000, nanos / 1000 % 1000));
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+/**
+ * Steps of a build measured by PhaseRecorder, named the way they appear
+ * in the metrics report and in JFR events.
+ */
+enum BuildPhase {
+
+	/** Listing css files of inpath, out is the number of files found. */
+	DIRECTORY_SCAN("directory-scan"),
+
+	/** Reading and decoding a module input or an imported file. */
+	READ("read"),
+
+	/** Finding @import statements and inlining imported files. */
+	IMPORTS("imports"),
+
+	/** Rebasing url() paths of an imported file on the module input. */
+	URL_REWRITE("url-rewrite"),
+
+	/** Replacing url()s of small images and fonts with data URIs, the datauri option. */
+	DATA_URIS("data-uris"),
+
+	/** Hashing a module and looking it up in the output cache, out is the cached size. */
+	OUTPUT_CACHE("output-cache"),
+
+	/** The YUI compressor. */
+	MINIFY("minify"),
+
+	/** Merging rules and removing overridden declarations, the optimize option. */
+	OPTIMIZE("optimize"),
+
+	/** The replaces option. */
+	REPLACES("replaces"),
+
+	/** The outwrapper option. */
+	WRAP("wrap"),
+
+	/** Encoding and writing an output file. */
+	WRITE("write"),
+
+	/** Writing a gzip copy of an output, in and out are bytes before and after compression. */
+	GZIP("gzip"),
+
+	/** Writing a deflate copy of an output, in and out are bytes before and after compression. */
+	DEFLATE("deflate");
+
+
+	private final String reportName;
+
+	BuildPhase(final String reportName) {
+		this.reportName = reportName;
+	}
+
+	String getReportName() {
+		return reportName;
+	}
+
+}
@@ -8,6 +8,9 @@
  */
 package ru.artlebedev.csscompressor;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -22,6 +25,8 @@ import org.apache.commons.cli.ParseException;
  */
 public class CliConfigBuilder extends ConfigBuilder {
 
+	static final String REPLACE_SPLITTER = "::";
+
 	Options options;
 
 	public CliConfigBuilder(final String[] args) throws ParseException {
@@ -42,6 +47,40 @@ public class CliConfigBuilder extends ConfigBuilder {
       	options.addOption(new Option("charset", true, "string"));
 		//PREPROCESS(
       	options.addOption(new Option("preprocess", true, "string"));
+		//THREADS(
+      	options.addOption(new Option("threads", true, "number"));
+		//IMPORT_CACHE_SIZE(
+      	options.addOption(new Option("importcachesize", true, "number"));
+		//INCREMENTAL(
+      	options.addOption(new Option("incremental", "skip modules whose imports did not change since the last build"));
+		//QUIET(
+      	options.addOption(new Option("quiet", "do not print service messages to stdout"));
+		//WATCH(
+      	options.addOption(new Option("watch", "keep running and rebuild modules affected by changes in inpath"));
+		//DISABLED_RULES(
+      	options.addOption(new Option("disablerules", true, "string"));
+		//METRICS(
+      	options.addOption(new Option("metrics", true, "string"));
+		//IMPORT_REPORT(
+      	options.addOption(new Option("importreport", true, "string"));
+		//SERVE(
+      	options.addOption(new Option("serve", true, "number"));
+		//OUTPUT_CACHE(
+      	options.addOption(new Option("cachedir", true, "string"));
+		//OUTPUT_CACHE_SIZE(
+      	options.addOption(new Option("cachesize", true, "number"));
+		//SHARED_CHUNKS(
+      	options.addOption(new Option("sharedchunks", true, "number"));
+		//PRECOMPRESS(
+      	options.addOption(new Option("precompress", true, "string"));
+		//COMPRESSION_LEVEL(
+      	options.addOption(new Option("compressionlevel", true, "number"));
+		//OPTIMIZE(
+      	options.addOption(new Option("optimize", "merge adjacent rules and remove overridden declarations"));
+		//DATA_URI(
+      	options.addOption(new Option("datauri", true, "number"));
+		// may be used many times, so it is not a ConfigOption
+      	options.addOption(new Option("replace", "replace", true, "regex-search::replace"));
 
       	CommandLineParser parser = new BasicParser();
       	final CommandLine cmdLine = parser.parse(options, args);
@@ -54,11 +93,18 @@ public class CliConfigBuilder extends ConfigBuilder {
       	for (ConfigOption configOption : ConfigOption.values()) {
             String optionName = configOption.getName();
 
+            Option option = options.getOption(optionName);
+            if (option != null && !option.hasArg()) {
+              // a flag, it's either presented or not
+              configOption.update(cmdLine.hasOption(optionName), this);
+            } else {
             //if (cmdLine.hasOption(optionName)) {
               configOption.update(cmdLine.getOptionValue(optionName, configOption.getDefaultValue()), this);
             //}
+            }
           }
 
+      	makeReplaces(cmdLine);
 	}
 
 	@Override
@@ -66,6 +112,30 @@ public class CliConfigBuilder extends ConfigBuilder {
 		return super.build();
 	}
 
+	private void makeReplaces(final CommandLine cmdLine) {
+		String[] replaceValues = cmdLine.getOptionValues("replace");
+		List<Config.Replace> processedReplaces = new ArrayList<Config.Replace>();
+
+		if (replaceValues != null) {
+			for (String replaceStr : replaceValues) {
+				if (!replaceStr.contains(REPLACE_SPLITTER)) {
+					throw new RuntimeException(
+							String.format(
+									"Replace '%s' did not contain splitter '%s'",
+									replaceStr, REPLACE_SPLITTER));
+				}
+				String[] split = replaceStr.split(REPLACE_SPLITTER, 2);
+				processedReplaces.add(new Config.Replace(split[0], split[1]));
+
+				if (!isQuiet()) {
+					System.out.println("Replace: " + split[0] + " => " + split[1]);
+				}
+			}
+		}
+
+		this.replaces = processedReplaces;
+	}
+
 	private void printUsage() {
 	    HelpFormatter formatter = new HelpFormatter();
 	    formatter.setWidth(120);
@@ -7,6 +7,7 @@
 package ru.artlebedev.csscompressor;
 
 import java.util.List;
+import java.util.regex.Pattern;
 
 
 class Config {
@@ -28,6 +29,38 @@ class Config {
 
   private final boolean quiet;
 
+  private final int threads;
+
+  private final int importCacheSize;
+
+  private final String manifestPath;
+
+  private final boolean watch;
+
+  private final List<String> disabledRules;
+
+  private final String metricsPath;
+
+  private final String importReportPath;
+
+  private final int servePort;
+
+  private final String outputCachePath;
+
+  private final int outputCacheSize;
+
+  private final int sharedChunkModules;
+
+  private final String sharedChunkManifestPath;
+
+  private final List<Precompression> precompressions;
+
+  private final int compressionLevel;
+
+  private final boolean optimize;
+
+  private final int dataUriLimit;
+
 
   Config(
       final String rootPath,
@@ -36,7 +69,23 @@ class Config {
       final List<Module> modules,
       final List<Replace> replaces,
       final String preprocessCommand,
-      final boolean quiet){
+      final boolean quiet,
+      final int threads,
+      final int importCacheSize,
+      final String manifestPath,
+      final boolean watch,
+      final List<String> disabledRules,
+      final String metricsPath,
+      final String importReportPath,
+      final int servePort,
+      final String outputCachePath,
+      final int outputCacheSize,
+      final int sharedChunkModules,
+      final String sharedChunkManifestPath,
+      final List<Precompression> precompressions,
+      final int compressionLevel,
+      final boolean optimize,
+      final int dataUriLimit){
 
     this.rootPath = rootPath;
     this.charset = charset;
@@ -45,6 +94,22 @@ class Config {
     this.replaces = replaces;
     this.preprocessCommand = preprocessCommand;
     this.quiet = quiet;
+    this.threads = threads;
+    this.importCacheSize = importCacheSize;
+    this.manifestPath = manifestPath;
+    this.watch = watch;
+    this.disabledRules = disabledRules;
+    this.metricsPath = metricsPath;
+    this.importReportPath = importReportPath;
+    this.servePort = servePort;
+    this.outputCachePath = outputCachePath;
+    this.outputCacheSize = outputCacheSize;
+    this.sharedChunkModules = sharedChunkModules;
+    this.sharedChunkManifestPath = sharedChunkManifestPath;
+    this.precompressions = precompressions;
+    this.compressionLevel = compressionLevel;
+    this.optimize = optimize;
+    this.dataUriLimit = dataUriLimit;
   }
 
   public String getRootPath() {
@@ -75,6 +140,176 @@ class Config {
     return quiet;
   }
 
+  /**
+   * @return  Number of worker threads modules are compressed with,
+   *          1 means modules are compressed one by one in a calling thread.
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @return  Memory limit in megabytes for imported files cached between modules,
+   *          0 means imported files are read again for every module.
+   */
+  public int getImportCacheSize() {
+    return importCacheSize;
+  }
+
+  /**
+   * @return  Path of a manifest used for incremental builds,
+   *          null if every module should be built every time.
+   */
+  public String getManifestPath() {
+    return manifestPath;
+  }
+
+  /**
+   * @return  Whether to keep running and rebuild modules when their sources change.
+   */
+  public boolean isWatch() {
+    return watch;
+  }
+
+  /**
+   * @return  Names of YUI rules (see CssRule.getRules()) not to apply,
+   *          empty if all of them are.
+   */
+  public List<String> getDisabledRules() {
+    return disabledRules;
+  }
+
+  /**
+   * @return  Path of a JSON report with per-module, per-phase times, sizes
+   *          and allocations, null if no report should be written.
+   */
+  public String getMetricsPath() {
+    return metricsPath;
+  }
+
+  /**
+   * @return  Path of a JSON report with the import tree of every module and
+   *          files duplicated across modules, null if no report should be written.
+   */
+  public String getImportReportPath() {
+    return importReportPath;
+  }
+
+  /**
+   * @return  Localhost port modules are served on between builds,
+   *          0 if the compressor exits after building them.
+   */
+  public int getServePort() {
+    return servePort;
+  }
+
+  /**
+   * @return  Directory minified modules are cached in by a hash of their
+   *          sources, null if every module should be minified.
+   */
+  public String getOutputCachePath() {
+    return outputCachePath;
+  }
+
+  /**
+   * @return  Size limit in megabytes of the output cache directory,
+   *          0 means it is never pruned.
+   */
+  public int getOutputCacheSize() {
+    return outputCacheSize;
+  }
+
+  /**
+   * @return  How many modules of a directory have to import a file for it
+   *          to be moved into a shared chunk, 0 means every module inlines
+   *          all of its imports.
+   */
+  public int getSharedChunkModules() {
+    return sharedChunkModules;
+  }
+
+  /**
+   * @return  Path of a manifest listing chunks every module needs,
+   *          null if there are no shared chunks.
+   */
+  public String getSharedChunkManifestPath() {
+    return sharedChunkManifestPath;
+  }
+
+  /**
+   * @return  Compressed copies written next to every output, empty if none.
+   */
+  public List<Precompression> getPrecompressions() {
+    return precompressions;
+  }
+
+  /**
+   * @return  Level of the compressed copies, from 0 (stored) to 9 (smallest).
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * @return  Whether minified modules get adjacent rules merged and
+   *          overridden declarations removed.
+   */
+  public boolean isOptimize() {
+    return optimize;
+  }
+
+  /**
+   * @return  Size in bytes of the biggest image or font inlined
+   *          as a data URI, 0 if none are.
+   */
+  public int getDataUriLimit() {
+    return dataUriLimit;
+  }
+
+  /**
+   * @return  Hash of options affecting contents of output files,
+   *          outputs built with another fingerprint can't be reused.
+   */
+  public String getOutputFingerprint() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(charset).append('\n');
+    sb.append(outputWrapper).append('\n');
+    if (replaces != null) {
+      for (Replace replace : replaces) {
+        sb.append(replace.search).append("::").append(replace.replacement).append('\n');
+      }
+    }
+    for (String rule : disabledRules) {
+      sb.append("-").append(rule).append('\n');
+    }
+    if (optimize) {
+      sb.append("optimize\n");
+    }
+    if (dataUriLimit > 0) {
+      sb.append("datauri ").append(dataUriLimit).append('\n');
+    }
+    if (sharedChunkModules > 0) {
+      sb.append("sharedchunks ").append(sharedChunkModules).append('\n');
+    }
+    return Utils.sha1Hex(sb.toString());
+  }
+
+  /**
+   * @return  Hash of options affecting any file written for a module,
+   *          compressed copies included, so an incremental build with
+   *          other encodings or level rebuilds every module.
+   */
+  public String getManifestFingerprint() {
+    StringBuilder sb = new StringBuilder(getOutputFingerprint()).append('\n');
+    for (Precompression precompression : precompressions) {
+      sb.append(precompression.getName()).append('\n');
+    }
+    if (!precompressions.isEmpty()) {
+      sb.append("level ").append(compressionLevel).append('\n');
+    }
+    return Utils.sha1Hex(sb.toString());
+  }
+
 
   final static class Module {
 
@@ -95,10 +330,13 @@ class Config {
 
     final String search;
     final String replacement;
+    // compiled once rather than by String.replaceAll for every module
+    final Pattern pattern;
 
     Replace(final String search, final String replacement) {
       this.search = search;
       this.replacement = replacement;
+      this.pattern = Pattern.compile(search);
     }
 
   }
@@ -14,9 +14,12 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.FileUtils;
 
+import com.yahoo.platform.yui.compressor.CssRule;
+
 import ru.artlebedev.csscompressor.Config.Replace;
 
 /**
@@ -36,6 +39,22 @@ public abstract class ConfigBuilder {
 	private String preprocessCommand;
 	protected List<Replace> replaces;
 	private boolean quiet;
+	private int threads = 1;
+	private int importCacheSize;
+	private boolean incremental;
+	private boolean watch;
+	private String disabledRules;
+	private String metricsPath;
+	private String importReportPath;
+	private int servePort;
+	private String outputCachePath;
+	private int outputCacheSize;
+	private int sharedChunkModules;
+	private String precompress;
+	private int compressionLevel;
+	private boolean optimize;
+	private int dataUriLimit;
+	private final PhaseRecorder buildPhases = new PhaseRecorder(null);
 
 
 	protected Config build() throws Exception {
@@ -46,7 +65,23 @@ public abstract class ConfigBuilder {
 		        getModules(),
 		        replaces,
 		        preprocessCommand,
-		        isQuiet());
+		        isQuiet(),
+		        getThreads(),
+		        importCacheSize,
+		        getManifestPath(),
+		        watch,
+		        getDisabledRules(),
+		        getMetricsPath(),
+		        getImportReportPath(),
+		        getServePort(),
+		        getOutputCachePath(),
+		        getOutputCacheSize(),
+		        getSharedChunkModules(),
+		        getSharedChunkManifestPath(),
+		        getPrecompressions(),
+		        getCompressionLevel(),
+		        optimize,
+		        getDataUriLimit());
 	}
 
 	public void setRootPath(final String rootPath) {
@@ -74,6 +109,70 @@ public abstract class ConfigBuilder {
 	    this.preprocessCommand = command;
 	  }
 
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	public void setImportCacheSize(final int importCacheSize) {
+		this.importCacheSize = importCacheSize;
+	}
+
+	public void setIncremental(final boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public void setQuiet(final boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	public void setWatch(final boolean watch) {
+		this.watch = watch;
+	}
+
+	public void setDisabledRules(final String disabledRules) {
+		this.disabledRules = disabledRules;
+	}
+
+	public void setMetricsPath(final String metricsPath) {
+		this.metricsPath = metricsPath;
+	}
+
+	public void setImportReportPath(final String importReportPath) {
+		this.importReportPath = importReportPath;
+	}
+
+	public void setServePort(final int servePort) {
+		this.servePort = servePort;
+	}
+
+	public void setOutputCachePath(final String outputCachePath) {
+		this.outputCachePath = outputCachePath;
+	}
+
+	public void setOutputCacheSize(final int outputCacheSize) {
+		this.outputCacheSize = outputCacheSize;
+	}
+
+	public void setSharedChunkModules(final int sharedChunkModules) {
+		this.sharedChunkModules = sharedChunkModules;
+	}
+
+	public void setPrecompress(final String precompress) {
+		this.precompress = precompress;
+	}
+
+	public void setCompressionLevel(final int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public void setOptimize(final boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	public void setDataUriLimit(final int dataUriLimit) {
+		this.dataUriLimit = dataUriLimit;
+	}
+
 	public void setInputPath(final String inputPath) {
 		this.inputPath = inputPath;
 	}
@@ -111,6 +210,7 @@ public abstract class ConfigBuilder {
 			  throw new RuntimeException("Option inputPath must be a valid directory "
 			  		+ "relative to the \"root\" option.");
 		  }
+		  buildPhases.begin(BuildPhase.DIRECTORY_SCAN);
 		  Collection<File> fileCol = FileUtils.listFiles(inDir, cssExtensions, true);
 		  List<Config.Module> modules = new ArrayList<Config.Module>();
 		  for (File cssFile : fileCol) {
@@ -119,6 +219,7 @@ public abstract class ConfigBuilder {
 			  String fileOutName = rootPathObj.relativize(filePath).toString();
 			  modules.add(new Config.Module(null, cssPath, getModuleOutputPath(fileOutName)));
 		  }
+		  buildPhases.end(BuildPhase.DIRECTORY_SCAN, 0, modules.size());
 		  return modules;
 	  }
 
@@ -148,6 +249,149 @@ public abstract class ConfigBuilder {
 		return Paths.get(rootPath).resolve(outputPath).resolve(moduleName).toString();
 	}
 
+	protected String getManifestPath() {
+		if (!incremental) {
+			return null;
+		}
+		return Paths.get(rootPath).resolve(outputPath)
+				.resolve(BuildManifest.FILE_NAME).toString();
+	}
+
+	protected String getMetricsPath() {
+		if (metricsPath == null) {
+			return null;
+		}
+		return Paths.get(rootPath).resolve(metricsPath).toString();
+	}
+
+	protected String getImportReportPath() {
+		if (importReportPath == null) {
+			return null;
+		}
+		return Paths.get(rootPath).resolve(importReportPath).toString();
+	}
+
+	protected int getServePort() {
+		if (servePort < 0 || servePort > 65535) {
+			throw new RuntimeException(
+					"Option serve must be a port number between 1 and 65535.");
+		}
+		return servePort;
+	}
+
+	protected String getOutputCachePath() {
+		if (outputCachePath == null) {
+			return null;
+		}
+		return Paths.get(rootPath).resolve(outputCachePath).toString();
+	}
+
+	protected int getOutputCacheSize() {
+		if (outputCacheSize < 0) {
+			throw new RuntimeException(
+					"Option cachesize must not be negative.");
+		}
+		return outputCacheSize;
+	}
+
+	protected int getSharedChunkModules() {
+		if (sharedChunkModules < 0 || sharedChunkModules == 1) {
+			throw new RuntimeException(
+					"Option sharedchunks must be 0 or a number of modules of at least 2.");
+		}
+		if (sharedChunkModules > 0 && (watch || servePort > 0)) {
+			// chunks are planned over all modules, a rebuild of a few would leave them stale
+			throw new RuntimeException(
+					"Option sharedchunks can't be used with watch or serve.");
+		}
+		return sharedChunkModules;
+	}
+
+	protected String getSharedChunkManifestPath() {
+		if (sharedChunkModules == 0) {
+			return null;
+		}
+		return Paths.get(rootPath).resolve(outputPath)
+				.resolve(SharedChunks.MANIFEST_NAME).toString();
+	}
+
+	protected List<Precompression> getPrecompressions() {
+		List<Precompression> precompressions = new ArrayList<Precompression>();
+		if (precompress == null) {
+			return precompressions;
+		}
+		for (String name : precompress.split(",")) {
+			Precompression precompression = Precompression.forName(name.trim());
+			if (precompression == null) {
+				throw new RuntimeException(String.format(
+						"Option precompress must list gzip or deflate, found '%s'.", name.trim()));
+			}
+			if (!precompressions.contains(precompression)) {
+				precompressions.add(precompression);
+			}
+		}
+		return precompressions;
+	}
+
+	protected int getCompressionLevel() {
+		if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new RuntimeException(
+					"Option compressionlevel must be a number between 0 and 9.");
+		}
+		return compressionLevel;
+	}
+
+	protected int getDataUriLimit() {
+		if (dataUriLimit < 0) {
+			throw new RuntimeException(
+					"Option datauri must not be negative.");
+		}
+		return dataUriLimit;
+	}
+
+	/**
+	 * @return  Phases of building not belonging to any module, i.e. directory scans.
+	 */
+	PhaseRecorder getBuildPhases() {
+		return buildPhases;
+	}
+
+	protected int getThreads() {
+		if (threads < 0) {
+			throw new RuntimeException(
+					"Option threads must not be negative.");
+		}
+		if (threads == 0) {
+			// 0 means "as many as we have cores"
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return threads;
+	}
+
+	protected List<String> getDisabledRules() {
+		List<String> rules = new ArrayList<String>();
+		if (disabledRules == null) {
+			return rules;
+		}
+		for (String name : disabledRules.split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (CssRule.forName(name) == null) {
+				StringBuilder known = new StringBuilder();
+				for (CssRule rule : CssRule.getRules()) {
+					known.append(known.length() == 0 ? "" : ", ").append(rule.getName());
+				}
+				throw new RuntimeException(String.format(
+						"Option disablerules has an unknown rule '%s'. Known rules: %s.",
+						name, known));
+			}
+			rules.add(name);
+		}
+		return rules;
+	}
+
 	public boolean isQuiet() {
 	    return quiet;
 	  }
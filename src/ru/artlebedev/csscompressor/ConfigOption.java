@@ -100,7 +100,158 @@ public enum ConfigOption {
           builder.setPreprocessCommand(preprocessCommand);
         }
       },
-      "UTF-8")
+      "UTF-8"),
+
+  THREADS(
+      "threads", "number",
+      new Updater(){
+        @Override
+        public void update(final String threads, final ConfigBuilder builder){
+          builder.setThreads(parseInt(threads));
+        }
+      },
+      "1"), // 0 means one thread per available processor
+
+  IMPORT_CACHE_SIZE(
+      "importcachesize", "number",
+      new Updater(){
+        @Override
+        public void update(final String size, final ConfigBuilder builder){
+          builder.setImportCacheSize(parseInt(size));
+        }
+      },
+      "64"), // megabytes
+
+  INCREMENTAL(
+      "incremental", "boolean",
+      new Updater(){
+        @Override
+        public void update(final boolean incremental, final ConfigBuilder builder){
+          builder.setIncremental(incremental);
+        }
+      }),
+
+  QUIET(
+      "quiet", "boolean",
+      new Updater(){
+        @Override
+        public void update(final boolean quiet, final ConfigBuilder builder){
+          builder.setQuiet(quiet);
+        }
+      }),
+
+  WATCH(
+      "watch", "boolean",
+      new Updater(){
+        @Override
+        public void update(final boolean watch, final ConfigBuilder builder){
+          builder.setWatch(watch);
+        }
+      }),
+
+  DISABLED_RULES(
+      "disablerules", "string",
+      new Updater(){
+        @Override
+        public void update(final String rules, final ConfigBuilder builder){
+          builder.setDisabledRules(rules);
+        }
+      }), // comma separated names of YUI rules
+
+  METRICS(
+      "metrics", "string",
+      new Updater(){
+        @Override
+        public void update(final String metricsPath, final ConfigBuilder builder){
+          builder.setMetricsPath(metricsPath);
+        }
+      }), // relative to root
+
+  IMPORT_REPORT(
+      "importreport", "string",
+      new Updater(){
+        @Override
+        public void update(final String importReportPath, final ConfigBuilder builder){
+          builder.setImportReportPath(importReportPath);
+        }
+      }), // relative to root
+
+  SERVE(
+      "serve", "number",
+      new Updater(){
+        @Override
+        public void update(final String port, final ConfigBuilder builder){
+          builder.setServePort(parseInt(port));
+        }
+      },
+      "0"), // 0 means don't serve
+
+  OUTPUT_CACHE(
+      "cachedir", "string",
+      new Updater(){
+        @Override
+        public void update(final String outputCachePath, final ConfigBuilder builder){
+          builder.setOutputCachePath(outputCachePath);
+        }
+      }), // relative to root
+
+  OUTPUT_CACHE_SIZE(
+      "cachesize", "number",
+      new Updater(){
+        @Override
+        public void update(final String size, final ConfigBuilder builder){
+          builder.setOutputCacheSize(parseInt(size));
+        }
+      },
+      "0"), // megabytes, 0 means no limit
+
+  SHARED_CHUNKS(
+      "sharedchunks", "number",
+      new Updater(){
+        @Override
+        public void update(final String modules, final ConfigBuilder builder){
+          builder.setSharedChunkModules(parseInt(modules));
+        }
+      },
+      "0"), // 0 means no shared chunks
+
+  PRECOMPRESS(
+      "precompress", "string",
+      new Updater(){
+        @Override
+        public void update(final String precompress, final ConfigBuilder builder){
+          builder.setPrecompress(precompress);
+        }
+      }), // comma separated gzip, deflate
+
+  COMPRESSION_LEVEL(
+      "compressionlevel", "number",
+      new Updater(){
+        @Override
+        public void update(final String level, final ConfigBuilder builder){
+          builder.setCompressionLevel(parseInt(level));
+        }
+      },
+      "9"), // best compression, outputs are compressed once and served many times
+
+  OPTIMIZE(
+      "optimize", "boolean",
+      new Updater(){
+        @Override
+        public void update(final boolean optimize, final ConfigBuilder builder){
+          builder.setOptimize(optimize);
+        }
+      }),
+
+  DATA_URI(
+      "datauri", "number",
+      new Updater(){
+        @Override
+        public void update(final String limit, final ConfigBuilder builder){
+          builder.setDataUriLimit(parseInt(limit));
+        }
+      },
+      "0") // bytes, 0 means nothing is inlined
   ;
 
 
@@ -200,11 +351,22 @@ public enum ConfigOption {
     	else if (object instanceof String) {
     		update(object.toString(), builder);
     	}*/
-    	if (object != null) {
+    	if (object instanceof Boolean) {
+    		update(((Boolean) object).booleanValue(), builder);
+    	} else if (object != null) {
     		update(object.toString(), builder);
     	}
     }
 
+    protected int parseInt(final String value) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throwExceptionOnOptionWrongType(value);
+        return 0;
+      }
+    }
+
     public void setOptionName(final String name) {
       this.optionName = name;
     }
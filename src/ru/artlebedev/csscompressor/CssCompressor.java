@@ -9,366 +9,598 @@
 
 package ru.artlebedev.csscompressor;
 
+import com.yahoo.platform.yui.compressor.CssRule;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.Path;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class CssCompressor {
 
-	/*
-		CSS imports are allowed in 2 syntaxes:
-			1. @import url("style.css")
-			2. @import "style.css"
-		So this regex is expecting a valid input CSS.
-
-		TODO(samilyak): Consider using more bulletproof regex -
-		it tracks a paring of quotes and parenthesis
-		@import\s+(?:url\(\s*(?=[^;$]+?\)))?(["']?)([\w\\\/\-\_\.]+?\.css)\1(?!["'])[^;$]*?(;|$)
-
-		Completed by DKeyworth: (samilyak): Prevent from matching @import inside CSS comments
-
-	*/
-	private static final Pattern cssImportPattern = Pattern.compile(
-			"@import\\s+" +
-
-			// optional 'url(' part (non capturing subpattern) with optional quote
-			"(?:url\\(\\s*)?" + "[\"']?" +
-
-			// file path ending with '.css' in capturing subpattern 1
-			// word characters, slashes, dash, underscore, dot,
-			// colon and question mark (possible for absolute urls) are allowed
-			"([\\w\\\\/\\-_.:?]+?\\.css)" +
-
-			// the rest of the line until semicolon or line break
-			"[^;$]*?(;|$)",
-			Pattern.MULTILINE);
+	private final Config config;
 
-	// A small pattern used to decide how to fix situations where the relative-resolver has already
-	// changed an instance of an import. If the import used the url-parentheses pattern, we need
-	// to resolve it by root file path. Otherwise, we should do it the original way based on the
-	// currently-resolving file path.
-	private static final Pattern cssImportUrlPattern = Pattern.compile("^\\s*@import\\s+url\\(");
+	private final CssEngine engine;
 
-	// Pattern without escaping slashes: /\*([\s\S]*?)\*/
-	private static final Pattern cssCommentPattern = Pattern.compile("/\\*([\\s\\S]*?)\\*/");
+	// null if every module is minified
+	private final OutputCache outputCache;
 
-	// Pattern without escaping slashes: url\((['"])?((?:[\w\.]+/)*\w+\.([a-zA-Z]{2,4}))(['"])?\)
-	// Matches the url() section of: "background-image: url("../thing.png");"
-	// Group 1: First quotation mark. (optional)
-	// Group 2: The URL of the image/resource
-	// Group 3: The file's extension
-	// Group 4: The closing quotation mark. (optional)
-	private static final Pattern cssUrlPattern = Pattern.compile("url\\((['\"])?((?:[\\w\\.]+/)*\\w+\\.([a-zA-Z]{2,4}))(['\"])?\\)");
+	// null if no assets are inlined as data URIs
+	private final DataUriInliner dataUriInliner;
 
-	private static final int MAX_COMMENT_SURROUND_LENGTH = 500;
+	// null if every module inlines all of its imports
+	private volatile SharedChunks sharedChunks;
 
-	private final Config config;
+	private volatile BuildMetrics metrics;
 
 
 
 	public CssCompressor(final Config config) {
 		this.config = config;
+		this.engine = new CssEngine(
+				CssRule.getRulesExcept(config.getDisabledRules()),
+				config.getReplaces(),
+				config.getOutputWrapper(),
+				new FileImportResolver(config.getCharset()),
+				new ImportCache(config.getImportCacheSize() * 1024L * 1024L),
+				config.getImportReportPath() != null,
+				config.getManifestPath() != null,
+				config.isOptimize());
+		if (config.getOutputCachePath() != null && OutputCache.getToolVersion() == null) {
+			// entries of other code would be taken for this one's
+			System.out.println("Unable to tell the version of the compressor, output cache " +
+					config.getOutputCachePath() + " is not used");
+		}
+		this.outputCache = config.getOutputCachePath() == null || OutputCache.getToolVersion() == null ?
+				null :
+				new OutputCache(config.getOutputCachePath(),
+						config.getOutputCacheSize() * 1024L * 1024L,
+						config.getOutputFingerprint());
+		this.dataUriInliner = config.getDataUriLimit() == 0 ? null :
+				new DataUriInliner(config.getDataUriLimit());
 	}
 
 
 	public void compress() throws IOException {
-		for (Config.Module module : config.getModules()) {
-			prepareModuleOutputCatalog(module);
+		List<Config.Module> modules = config.getModules();
 
-			String css = processCssRootFile(module.input, true);
+		String fingerprint = config.getManifestFingerprint();
+		if (config.getSharedChunkModules() > 0) {
+			sharedChunks = SharedChunks.plan(engine, modules, config.getSharedChunkModules());
+			// modules built with other chunks inline other files
+			fingerprint = Utils.sha1Hex(fingerprint + sharedChunks.getFingerprint());
+		}
 
-			com.yahoo.platform.yui.compressor.CssCompressor compressor =
-					new com.yahoo.platform.yui.compressor.CssCompressor(
-							new StringReader(css));
+		BuildManifest manifest = null;
+		if (config.getManifestPath() != null) {
+			manifest = BuildManifest.load(config.getManifestPath(), fingerprint);
+			modules = manifest.getOutdatedModules(modules);
 
-			StringWriter stringWriter = new StringWriter();
-			compressor.compress(stringWriter, -1);
-			css = stringWriter.toString();
+			if (!config.isQuiet()) {
+				System.out.println(String.format(
+						"Incremental build: %d of %d modules are up to date",
+						config.getModules().size() - modules.size(),
+						config.getModules().size()));
+			}
+		}
 
-			css = applyReplaces(css);
-			css = wrapCssWithOutputWrapper(css);
+		long wallStart = System.nanoTime();
+		List<ModuleResult> results = compress(modules);
+		metrics = new BuildMetrics(results, System.nanoTime() - wallStart,
+				Math.max(Math.min(config.getThreads(), modules.size()), 1));
 
-			Utils.writeToFile(module.outputPath, css, config.getCharset());
+		if (config.getImportReportPath() != null) {
+			writeImportReport(results);
 		}
-	}
 
-	private void prepareModuleOutputCatalog(final Config.Module module) {
-		File outputCatalog = new File(module.outputPath).getParentFile();
-		if (outputCatalog != null) {
-			// null means outputPath doesn't contain catalog part, just filename -
-			// it's OK, we'll write to current catalog
+		if (sharedChunks != null) {
+			sharedChunks.writeManifest(config.getSharedChunkManifestPath(), config.getModules());
+			if (!config.isQuiet()) {
+				for (SharedChunks.Chunk chunk : sharedChunks.getChunks()) {
+					System.out.println(String.format("Shared chunk %s: %s, loaded by %d modules",
+							chunk.outputPath, chunk.source, chunk.modules.size()));
+				}
+				System.out.println("Shared chunk manifest written to " +
+						config.getSharedChunkManifestPath());
+			}
+		}
 
-			outputCatalog.mkdirs();
-			if (!outputCatalog.exists()) {
-				throw new RuntimeException(
-						"Unable to write to catalog " + outputCatalog.getPath());
+		if (manifest != null) {
+			for (ModuleResult result : results) {
+				manifest.update(result);
 			}
+			manifest.retainModules(config.getModules());
+			manifest.save();
 		}
 	}
 
-	private String processCssRootFile(final String path, final boolean tryPreprocess)
-			throws IOException {
+	/**
+	 * Compresses given modules regardless of whether they are up to date.
+	 *
+	 * @return  Results in the order of modules.
+	 */
+	List<ModuleResult> compress(final List<Config.Module> modules) throws IOException {
+		return compress(modules, null);
+	}
 
-		List<String> processedFiles = new ArrayList<String>(0);
+	/**
+	 * Compresses given modules regardless of whether they are up to date.
+	 *
+	 * @param failures  Receives modules which failed with what they failed with,
+	 *                  the rest are still compressed; null to stop at the first one.
+	 * @return          Results of modules compressed, in the order of modules.
+	 */
+	List<ModuleResult> compress(final List<Config.Module> modules,
+			final Map<Config.Module, Exception> failures) throws IOException {
 
-		// The directory containing the CSS file representing the compression. ie, "css/layers/"
-		Path rootPath = Paths.get(path).getParent();
+		// counters live as long as the compressor, -watch and -serve report builds by the difference
+		Counters before = new Counters();
 
-		CssProcessingResult pathProcessingResult =
-				processCssFile(rootPath, path, processedFiles, tryPreprocess);
+		if (sharedChunks != null) {
+			compressSharedChunks(modules);
+		}
 
-		return pathProcessingResult.content;
-	}
+		int threads = Math.min(config.getThreads(), modules.size());
+
+		long wallStart = System.nanoTime();
+		List<ModuleResult> results;
+		if (threads > 1) {
+			results = compressInParallel(modules, threads, failures);
+		} else {
+			results = new ArrayList<ModuleResult>(modules.size());
+			for (Config.Module module : modules) {
+				try {
+					results.add(compressModule(module));
+				} catch (IOException e) {
+					recordFailure(failures, module, e);
+				} catch (RuntimeException e) {
+					recordFailure(failures, module, e);
+				}
+			}
+		}
+		long wallTime = System.nanoTime() - wallStart;
+
+		long cpuTime = 0;
+		for (ModuleResult result : results) {
+			cpuTime = cpuTime < 0 || result.cpuTime < 0 ? -1 : cpuTime + result.cpuTime;
+		}
+
+		if (!config.isQuiet()) {
+			// thread CPU time isn't supported by every JVM
+			System.out.println(String.format(
+					"Compressed %d modules with %d thread(s): wall %dms, %s",
+					modules.size(), Math.max(threads, 1), wallTime / 1000000,
+					cpuTime < 0 ? "cpu n/a" : String.format("cpu %dms (cpu/wall %.2f)",
+							cpuTime / 1000000, wallTime > 0 ? (double) cpuTime / wallTime : 0)));
+			System.out.println(String.format(
+					"Import cache: %d hits, %d misses, %d evictions",
+					getImportCache().getHits() - before.importHits,
+					getImportCache().getMisses() - before.importMisses,
+					getImportCache().getEvictions() - before.importEvictions));
+			printRuleStatistics(before);
+			printReplaceStatistics(before);
+			if (engine.getOptimizer() != null) {
+				System.out.println(String.format(
+						"Optimizer: %d rules merged, %d declarations removed",
+						engine.getOptimizer().getRulesMerged() - before.rulesMerged,
+						engine.getOptimizer().getDeclarationsRemoved() - before.declarationsRemoved));
+			}
+		}
 
+		if (!config.isQuiet() && dataUriInliner != null) {
+			for (ModuleResult result : results) {
+				if (result.dataUris > 0) {
+					System.out.println(String.format(
+							"Data URIs in %s: %d requests removed, %d bytes added",
+							result.module.outputPath, result.dataUris,
+							result.phases.getOut(BuildPhase.DATA_URIS) -
+									result.phases.getIn(BuildPhase.DATA_URIS)));
+				}
+			}
+		}
 
-	private String applyReplaces(String css) {
-		List<Config.Replace> replaces = config.getReplaces();
+		if (!config.isQuiet()) {
+			for (Precompression precompression : config.getPrecompressions()) {
+				long in = 0;
+				long out = 0;
+				for (ModuleResult result : results) {
+					in += result.phases.getIn(precompression.getPhase());
+					out += result.phases.getOut(precompression.getPhase());
+				}
+				System.out.println(String.format(
+						"Precompressed %s: %d bytes to %d bytes (%.1f%%)",
+						precompression.getName(), in, out, in > 0 ? 100.0 * out / in : 0));
+			}
+		}
 
-		if (replaces != null) {
-			for (Config.Replace replace : replaces) {
-				css = css.replaceAll(replace.search, replace.replacement);
+		if (outputCache != null) {
+			outputCache.prune();
+			if (!config.isQuiet()) {
+				long hits = outputCache.getHits() - before.outputCacheHits;
+				long misses = outputCache.getMisses() - before.outputCacheMisses;
+				System.out.println(String.format(
+						"Output cache: %d hits, %d misses (%.1f%% hit rate), %d entries pruned",
+						hits, misses, hits + misses > 0 ? 100.0 * hits / (hits + misses) : 0,
+						outputCache.getPruned() - before.outputCachePruned));
 			}
 		}
 
-		return css;
+		return results;
 	}
 
+	/**
+	 * @return  Phases of modules built by the last compress(), null before it.
+	 */
+	BuildMetrics getMetrics() {
+		return metrics;
+	}
 
-	private String wrapCssWithOutputWrapper(String css) {
-		if (config.getOutputWrapper() != null) {
-			if (config.getOutputWrapper().contains(Config.OUTPUT_WRAPPER_MARKER)) {
-				css = config.getOutputWrapper().replace(
-						Config.OUTPUT_WRAPPER_MARKER, css);
-			} else {
-				throw new RuntimeException(
-						String.format(
-								"Option '%s' did not contain placeholder %s",
-								ConfigOption.OUTPUT_WRAPPER.getName(),
-								Config.OUTPUT_WRAPPER_MARKER));
+	private void writeImportReport(final List<ModuleResult> results) throws IOException {
+		ImportReport report = new ImportReport(results);
+		report.write(config.getImportReportPath());
+
+		if (!config.isQuiet()) {
+			System.out.println("Import report written to " + config.getImportReportPath());
+			List<ImportReport.SharedFile> sharedFiles = report.getSharedFiles();
+			for (ImportReport.SharedFile file : sharedFiles.subList(0, Math.min(sharedFiles.size(), 5))) {
+				System.out.println(String.format(
+						"Shared %s: imported by %d modules, %d minified bytes duplicated",
+						file.path, file.importedBy.size(), file.getDuplicatedBytes()));
 			}
 		}
+	}
 
-		return css;
+	private void printRuleStatistics(final Counters before) {
+		List<CssRule> rules = engine.getRules();
+		for (int i = 0; i < rules.size(); i++) {
+			CssRule rule = rules.get(i);
+			System.out.println(String.format(
+					"Rule %s: %d runs, %d skipped, %.2fms, %d chars saved",
+					rule.getName(), rule.getRuns() - before.ruleRuns[i],
+					rule.getSkips() - before.ruleSkips[i],
+					(rule.getTime() - before.ruleTimes[i]) / 1000000.0,
+					rule.getCharsSaved() - before.ruleCharsSaved[i]));
+		}
 	}
 
+	private void printReplaceStatistics(final Counters before) {
+		Replacer replacer = engine.getReplacer();
+		for (int i = 0; i < replacer.getReplaces().size(); i++) {
+			System.out.println(String.format(
+					"Replace %s: %d hits",
+					replacer.getReplaces().get(i).search,
+					replacer.getHits(i) - before.replaceHits[i]));
+		}
+	}
 
-	private CssProcessingResult processCssFile(final Path rootFilePath,
-			final String path, final List<String> processedFiles, final boolean tryPreprocess)
-			throws IOException {
+	/**
+	 * Forgets everything cached about a file, so modules compressed after
+	 * that will read it again.
+	 */
+	void invalidate(final String canonicalPath) {
+		getImportCache().invalidate(canonicalPath);
+	}
 
-		/*
-			We need to prevent from processing same files more than once,
-			to minify result build file and more importantly to avoid cyclic imports.
-			That's why we need 3rd argument
-			containing paths of already processed files.
-		*/
+	ImportCache getImportCache() {
+		return engine.getImportCache();
+	}
 
-		File fileAtPath = new File(path);
-		Path fileDir = Paths.get(path).getParent();
-		String fileCanonicalPath = fileAtPath.getCanonicalPath();
+	/**
+	 * Compresses modules on a fixed pool of worker threads. Results are
+	 * collected in module order, so the first failing module (in that order)
+	 * is reported exactly the way a sequential run would report it.
+	 */
+	private List<ModuleResult> compressInParallel(final List<Config.Module> modules,
+			final int threads, final Map<Config.Module, Exception> failures) throws IOException {
 
-		if (processedFiles.contains(fileCanonicalPath)) {
-			return new CssProcessingResult("");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<ModuleResult>> futures =
+					new ArrayList<Future<ModuleResult>>(modules.size());
+			for (final Config.Module module : modules) {
+				futures.add(executor.submit(new Callable<ModuleResult>() {
+					@Override
+					public ModuleResult call() throws IOException {
+						return compressModule(module);
+					}
+				}));
+			}
+
+			List<ModuleResult> results = new ArrayList<ModuleResult>(modules.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(getModuleResult(futures.get(i)));
+				} catch (IOException e) {
+					recordFailure(failures, modules.get(i), e);
+				} catch (RuntimeException e) {
+					recordFailure(failures, modules.get(i), e);
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
 		}
+	}
+
+	/**
+	 * Rethrows a failure of a module unless failures are collected.
+	 */
+	private static void recordFailure(final Map<Config.Module, Exception> failures,
+			final Config.Module module, final IOException e) throws IOException {
 
-		processedFiles.add(fileCanonicalPath);
+		if (failures == null) {
+			throw e;
+		}
+		failures.put(module, e);
+	}
 
-		String inputContent;
-		/*if (tryPreprocess && config.getPreprocessCommand() != null) {
-			inputContent =
-					preprocessAndGetOutput(config.getPreprocessCommand(), path);
-		} else {*/
-			inputContent = Utils.readFile(path, config.getCharset());
-		//}
+	private static void recordFailure(final Map<Config.Module, Exception> failures,
+			final Config.Module module, final RuntimeException e) {
 
-		if (!fileDir.equals(rootFilePath)) {
-			Path relPath = rootFilePath.relativize(fileDir).normalize();
-			inputContent = rewriteRelativePaths(inputContent, relPath);
+		if (failures == null) {
+			throw e;
 		}
+		failures.put(module, e);
+	}
 
-		Matcher matcher = cssImportPattern.matcher(inputContent);
+	private static <T> T getModuleResult(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while compressing modules", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
 
-		StringBuffer stringResult = new StringBuffer();
-		while(matcher.find()){
+	private ModuleResult compressModule(final Config.Module module) throws IOException {
+		long cpuStart = getCurrentThreadCpuTime();
+		PhaseRecorder phases = new PhaseRecorder(module.input);
+
+		prepareOutputCatalog(module.outputPath);
+
+		CssEngine.CssProcessingResult processingResult = sharedChunks == null ?
+				engine.processCssRootFile(module.input, true, phases) :
+				engine.processCssRootFile(module.input, true, phases,
+						sharedChunks.getExcludedFiles(module));
+		String css = processingResult.content;
+
+		// before the output cache, so its key changes with inlined files
+		Map<String, String> dataUris = new LinkedHashMap<String, String>();
+		if (dataUriInliner != null) {
+			phases.begin(BuildPhase.DATA_URIS);
+			String inlined = dataUriInliner.inline(css,
+					Paths.get(module.input).toAbsolutePath().getParent(), dataUris);
+			phases.end(BuildPhase.DATA_URIS, css.length(), inlined.length());
+			css = inlined;
+		}
 
-			// It's likely we've just found an import statement. HOWEVER, here we do a check to ensure that
-			// it's not actually the inside of a comment. Keep in mind, CSS does not support single-line comments.
+		String cacheKey = null;
+		String cached = null;
+		if (outputCache != null) {
+			phases.begin(BuildPhase.OUTPUT_CACHE);
+			cacheKey = outputCache.getKey(css);
+			cached = outputCache.get(cacheKey);
+			phases.end(BuildPhase.OUTPUT_CACHE, css.length(), cached == null ? 0 : cached.length());
+		}
 
-			int startIdx = matcher.start(0);
-			int commentFindStartIndex = Math.max(startIdx - MAX_COMMENT_SURROUND_LENGTH, 0);
-			Matcher commentFind = cssCommentPattern.matcher(inputContent.substring(
-					commentFindStartIndex,
-					Math.min(startIdx + MAX_COMMENT_SURROUND_LENGTH, inputContent.length())));
-			boolean inComment = false;
-			while (commentFind.find()) {
-				if (commentFindStartIndex + commentFind.start() < startIdx &&
-					commentFindStartIndex + commentFind.end() > startIdx) {
-					inComment = true;
-					break;
-				}
-			}
-			if (inComment) {
-				continue;
+		if (cached != null) {
+			css = cached;
+		} else {
+			phases.begin(BuildPhase.MINIFY);
+			String minified = engine.minify(css);
+			phases.end(BuildPhase.MINIFY, css.length(), minified.length());
+			css = minified;
+
+			if (engine.getOptimizer() != null) {
+				phases.begin(BuildPhase.OPTIMIZE);
+				String optimized = engine.optimize(css);
+				phases.end(BuildPhase.OPTIMIZE, css.length(), optimized.length());
+				css = optimized;
 			}
 
+			phases.begin(BuildPhase.REPLACES);
+			String replaced = engine.applyReplaces(css);
+			phases.end(BuildPhase.REPLACES, css.length(), replaced.length());
+			css = replaced;
 
-			String importPath = matcher.group(1);
+			if (cacheKey != null) {
+				phases.begin(BuildPhase.OUTPUT_CACHE);
+				outputCache.put(cacheKey, css);
+				phases.end(BuildPhase.OUTPUT_CACHE, css.length(), css.length());
+			}
+		}
 
-			String importFileContent = "";
-			if (!isCssImportAbsolute(importPath)) {
-				// NOTE: At this point, all url()-based relative paths have been modified by rewriteRelativePaths,
-				// so we should be resolving this path based on the root file path.
-				File importFile;
-				String fg = matcher.group();
-				if (cssImportUrlPattern.matcher(matcher.group()).find()) {
-					importFile = rootFilePath.resolve(importPath).toFile();
-				}
-				else {
-					importFile = fileDir.resolve(importPath).toFile();
-				}
-				CssProcessingResult importProcessingResult =
-						processCssFile(rootFilePath, importFile.getPath(), processedFiles, false);
+		phases.begin(BuildPhase.WRAP);
+		String wrapped = engine.wrapCssWithOutputWrapper(css);
+		phases.end(BuildPhase.WRAP, css.length(), wrapped.length());
+		css = wrapped;
 
-				importFileContent = importProcessingResult.content;
-			}
+		phases.begin(BuildPhase.WRITE);
+		Utils.writeToFile(module.outputPath, css, config.getCharset());
+		phases.end(BuildPhase.WRITE, css.length(), new File(module.outputPath).length());
+
+		writePrecompressed(module.outputPath, css, phases);
 
-			/**
-			 * Do it like that (rather than simply
-			 * matcher.appendReplacement(stringResult, importFileContent))
-			 * because appendReplacement() is treating symbols \ and $ in its
-			 * 2nd argument in a special regex specific way.
-			 * So we need to avoid problem when source css
-			 * content:'\2014\a0' is converted to content:'2014a0'
-			 */
-			matcher.appendReplacement(stringResult, "");
-			stringResult.append(importFileContent);
+		// after the build phases so measuring doesn't skew them
+		if (processingResult.importTree != null) {
+			measureImportTree(processingResult.importTree);
 		}
-		matcher.appendTail(stringResult);
 
+		List<String> dependencies = processingResult.processedFiles;
+		if (!dataUris.isEmpty()) {
+			// a changed icon makes a module outdated like a changed import does
+			dependencies = new ArrayList<String>(dependencies);
+			dependencies.addAll(dataUris.keySet());
+		}
+		Map<String, String> hashes = processingResult.hashes;
+		if (!dataUris.isEmpty()) {
+			hashes = new HashMap<String, String>(hashes);
+			hashes.putAll(dataUris);
+		}
 
-		return new CssProcessingResult(stringResult.toString());
+		return new ModuleResult(module, dependencies, hashes,
+				cpuStart < 0 ? -1 : getCurrentThreadCpuTime() - cpuStart, phases,
+				processingResult.importTree, dataUris.size());
 	}
 
 
 	/**
-	 * @param inputContent
-	 * @param relPath The path that this CSS file will be retrieved from
-	 * @return
+	 * Builds chunks loaded by given modules, the way modules are built
+	 * but with urls relative to the modules' directory.
 	 */
-	private String rewriteRelativePaths(final String inputContent, final Path relPath) {
-		StringBuffer sb = new StringBuffer();
+	private void compressSharedChunks(final List<Config.Module> modules) throws IOException {
+		Set<SharedChunks.Chunk> chunks = new LinkedHashSet<SharedChunks.Chunk>();
+		for (Config.Module module : modules) {
+			chunks.addAll(sharedChunks.getChunks(module));
+		}
 
-		Matcher matcher = cssUrlPattern.matcher(inputContent);
+		for (SharedChunks.Chunk chunk : chunks) {
+			String css = engine.processCssFile(chunk.directory, chunk.path,
+					new HashSet<String>(), false, new PhaseRecorder(chunk.path)).content;
+			if (dataUriInliner != null) {
+				css = dataUriInliner.inline(css, chunk.directory.toAbsolutePath(),
+						new HashMap<String, String>());
+			}
+			css = engine.wrapCssWithOutputWrapper(
+					engine.applyReplaces(engine.optimize(engine.minify(css))));
 
-		while (matcher.find()) {
+			prepareOutputCatalog(chunk.outputPath);
+			Utils.writeToFile(chunk.outputPath, css, config.getCharset());
+			writePrecompressed(chunk.outputPath, css, new PhaseRecorder(chunk.path));
+		}
+	}
 
-			/* Note: It would be possible to refactor the @import comment-watching so we don't
-			replace commented URLs, but that's not really going to be an issue here. It's bad
-			if we accidentally import a file, but it's not harmful to fix a URL inside of a comment.*/
+	/**
+	 * Writes compressed copies of an output next to it, on the thread
+	 * compressing the module, so they are made in parallel like modules.
+	 * Copies in encodings no longer enabled are deleted, a web server
+	 * would serve them instead of the new output.
+	 */
+	private void writePrecompressed(final String outputPath, final String css,
+			final PhaseRecorder phases) throws IOException {
 
-			String quot1 = matcher.group(1);
-			String quot2 = matcher.group(4);
-			if (!((quot1 == null && quot2 == null) ||
-					quot1.equals(quot2))) {
-				System.out.println("Found likely url() candidate, but was not able to match quotes: " + matcher.group());
-				matcher.appendReplacement(sb, "");
-				sb.append(matcher.group());
-				continue;
+		for (Precompression precompression : Precompression.values()) {
+			if (!config.getPrecompressions().contains(precompression)) {
+				new File(outputPath + precompression.getExtension()).delete();
 			}
+		}
 
-			// URL will be a relative path like "../../images/icon.png"
-			String url = matcher.group(2);
-			Path urlPath = Paths.get(url);
-			// Combine the relative path that moves us from "css/layers/renderingFile.css" to "css/requireFile.css"
-			// WITH the relative path that moves us from "css/requireFile.css" to "images/icon.png"
-			Path newRelPath = relPath.resolve(urlPath).normalize();
-			// Path class automatically uses \, which escapes characters in HTML strings.
-			String newRel = newRelPath.toString().replace('\\', '/');
-
-			String patternReplace = String.format("url(%s)", newRel);
+		if (config.getPrecompressions().isEmpty()) {
+			return;
+		}
 
-			matcher.appendReplacement(sb, "");
-			sb.append(patternReplace);
+		byte[] content = css.getBytes(config.getCharset());
+		for (Precompression precompression : config.getPrecompressions()) {
+			phases.begin(precompression.getPhase());
+			long size = precompression.write(outputPath, content, config.getCompressionLevel());
+			phases.end(precompression.getPhase(), content.length, size);
 		}
-		matcher.appendTail(sb);
-		return sb.toString();
 	}
 
-/*
-	private String preprocessAndGetOutput(final String command, final String path)
-			throws IOException {
-
-		// replace %s with a file path
-
-		String expandedCommand = String.format(command, path);
-
-		CommandLine commandLine = CommandLine.parse(expandedCommand);
+	/**
+	 * Minifies rules of every file in a tree on their own, which is
+	 * close enough to what they take of a minified module.
+	 */
+	private void measureImportTree(final ImportNode node) throws IOException {
+		String content = node.getContent();
+		node.setSizes(content.getBytes(config.getCharset()).length,
+				engine.minify(content).getBytes(config.getCharset()).length);
 
-		DefaultExecutor executor = new DefaultExecutor();
-		executor.setWatchdog(new ExecuteWatchdog(30 * 1000));
-		final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-		final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-		executor.setStreamHandler(new PumpStreamHandler(stdout, stderr));
+		for (ImportNode child : node.imports) {
+			measureImportTree(child);
+		}
+	}
 
-		if (!config.isQuiet()) {
-			System.out.println(
-					String.format(
-							"INFO: executing preprocess command `%s`", expandedCommand));
+	private static long getCurrentThreadCpuTime() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!threadBean.isCurrentThreadCpuTimeSupported()) {
+			return -1;
 		}
+		return threadBean.getCurrentThreadCpuTime();
+	}
 
-		try {
-			executor.execute(commandLine);
+	private void prepareOutputCatalog(final String outputPath) {
+		File outputCatalog = new File(outputPath).getParentFile();
+		if (outputCatalog != null) {
+			// null means outputPath doesn't contain catalog part, just filename -
+			// it's OK, we'll write to current catalog
 
-			String innerErrors = stderr.toString(config.getCharset());
-			if (innerErrors != null && !innerErrors.equals("")) {
-				System.out.println(innerErrors);
+			outputCatalog.mkdirs();
+			if (!outputCatalog.exists()) {
+				throw new RuntimeException(
+						"Unable to write to catalog " + outputCatalog.getPath());
 			}
-
-		} catch (IOException e) {
-			throw new RuntimeException(
-					String.format("Preprocessing file %s failed.", path) +
-					"\n" + stderr.toString(config.getCharset()) +
-					"\n" + e.getMessage());
 		}
+	}
 
-		return stdout.toString(config.getCharset());
-	}*/
 
+	/**
+	 * Statistics counters of the engine and caches taken before a build.
+	 */
+	private final class Counters {
 
-	private static boolean isCssImportAbsolute(final String path) {
-		boolean isAbsoluteUri;
-		try{
-			URI uri = new URI(path);
-			isAbsoluteUri = uri.isAbsolute();
-		} catch (URISyntaxException e) {
-			isAbsoluteUri = false;
-		}
+		final long importHits = getImportCache().getHits();
+		final long importMisses = getImportCache().getMisses();
+		final long importEvictions = getImportCache().getEvictions();
 
-		return isAbsoluteUri || new File(path).isAbsolute();
-	}
+		final long[] ruleRuns = new long[engine.getRules().size()];
+		final long[] ruleSkips = new long[ruleRuns.length];
+		final long[] ruleTimes = new long[ruleRuns.length];
+		final long[] ruleCharsSaved = new long[ruleRuns.length];
 
+		final long[] replaceHits = new long[engine.getReplacer().getReplaces().size()];
 
+		final long rulesMerged;
+		final long declarationsRemoved;
 
-	private final static class CssProcessingResult {
+		final long outputCacheHits;
+		final long outputCacheMisses;
+		final long outputCachePruned;
 
-		final String content;
-		//final List<String> processedFiles;
+		Counters() {
+			for (int i = 0; i < ruleRuns.length; i++) {
+				CssRule rule = engine.getRules().get(i);
+				ruleRuns[i] = rule.getRuns();
+				ruleSkips[i] = rule.getSkips();
+				ruleTimes[i] = rule.getTime();
+				ruleCharsSaved[i] = rule.getCharsSaved();
+			}
+			for (int i = 0; i < replaceHits.length; i++) {
+				replaceHits[i] = engine.getReplacer().getHits(i);
+			}
 
-		public CssProcessingResult(
-				final String content){
+			StructureOptimizer optimizer = engine.getOptimizer();
+			rulesMerged = optimizer == null ? 0 : optimizer.getRulesMerged();
+			declarationsRemoved = optimizer == null ? 0 : optimizer.getDeclarationsRemoved();
 
-			this.content = content;
-			//this.processedFiles = processedFiles;
+			outputCacheHits = outputCache == null ? 0 : outputCache.getHits();
+			outputCacheMisses = outputCache == null ? 0 : outputCache.getMisses();
+			outputCachePruned = outputCache == null ? 0 : outputCache.getPruned();
 		}
 
 	}
@@ -0,0 +1,727 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.yahoo.platform.yui.compressor.CssRule;
+
+/**
+ * Everything CssCompressor does to a module besides finding it and writing
+ * it out: inlining imports, rewriting urls of imported files, minifying
+ * and applying replaces and an output wrapper. It holds no state of a single
+ * compression, so one engine is meant to be shared by all threads of an
+ * asset pipeline:
+ *
+ *   CssEngine.Builder builder = new CssEngine.Builder();
+ *   builder.addReplace("\\.png\\)", ".png?v=2)");
+ *   CssEngine engine = builder.build();
+ *   ...
+ *   engine.compress(css, out);
+ *
+ * Patterns are compiled once, all replaces are applied in a single pass
+ * over the stylesheet (see Replacer). Output of the YUI
+ * compressor is collected in a buffer kept per thread between calls.
+ * Imports are read through an ImportResolver, files by default.
+ */
+public final class CssEngine {
+
+	/*
+		CSS imports are allowed in 2 syntaxes:
+			1. @import url("style.css")
+			2. @import "style.css"
+		Both are found by CssTokenizer, which also keeps imports inside
+		comments and strings from being taken for real ones. Only files
+		ending with '.css' are inlined, the rest of a statement up to
+		a semicolon or a line break (media queries) is dropped with it.
+	*/
+	// word characters, slashes, dash, underscore, dot,
+	// colon and question mark (possible for absolute urls) are allowed
+	private static final Pattern cssImportPathPattern = Pattern.compile("[\\w\\\\/\\-_.:?]+?\\.css");
+
+	// Urls rewritten relative to the root file, like "../../images/icon.png":
+	// (?:[\w\.]+/)*\w+\.([a-zA-Z]{2,4})
+	// Absolute urls and data: uris don't match, so they are left as they are.
+	private static final Pattern cssRelativeUrlPattern = Pattern.compile("(?:[\\w\\.]+/)*\\w+\\.([a-zA-Z]{2,4})");
+
+	// scratch buffers bigger than this are dropped after use, not to pin them in every thread
+	private static final int MAX_SCRATCH_CHARS = 1024 * 1024;
+
+	private static final ThreadLocal<StringBuilder> scratch = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder();
+		}
+	};
+
+	private static final ThreadLocal<char[]> readBuffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[8192];
+		}
+	};
+
+	private final List<CssRule> rules;
+
+	private final Replacer replacer;
+
+	private final String outputWrapper;
+
+	private final ImportResolver importResolver;
+
+	private final ImportCache importCache;
+
+	// whether processCssFile builds ImportNode trees for the import report
+	private final boolean collectImportTrees;
+
+	// whether files read are hashed for the incremental build manifest
+	private final boolean hashSources;
+
+	// null if minified stylesheets are not optimized
+	private final StructureOptimizer optimizer;
+
+
+	CssEngine(final List<CssRule> rules, final List<Config.Replace> replaces,
+			final String outputWrapper, final ImportResolver importResolver,
+			final ImportCache importCache, final boolean collectImportTrees,
+			final boolean hashSources, final boolean optimize) {
+
+		this.rules = rules;
+		this.replacer = new Replacer(replaces == null ?
+				Collections.<Config.Replace>emptyList() : replaces);
+		this.outputWrapper = outputWrapper;
+		this.importResolver = importResolver;
+		this.importCache = importCache;
+		this.collectImportTrees = collectImportTrees;
+		this.hashSources = hashSources;
+		this.optimizer = optimize ? new StructureOptimizer() : null;
+	}
+
+	/**
+	 * Minifies (and optimizes) a stylesheet and applies replaces and
+	 * the output wrapper to it. Imports are left as they are.
+	 */
+	public void compress(final CharSequence css, final Appendable out) throws IOException {
+		out.append(wrapCssWithOutputWrapper(applyReplaces(optimize(minify(css.toString())))));
+	}
+
+	/**
+	 * Same as compress(CharSequence, Appendable), reading a stylesheet
+	 * to its end. The reader is not closed.
+	 */
+	public void compress(final Reader in, final Appendable out) throws IOException {
+		StringBuilder sb = scratch.get();
+		char[] buffer = readBuffers.get();
+		String css;
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+			css = sb.toString();
+		} finally {
+			releaseScratch(sb);
+		}
+		compress(css, out);
+	}
+
+	/**
+	 * Inlines imports of a stylesheet read through the import resolver,
+	 * rebasing urls of imported files on its catalog, then compresses it
+	 * like compress(CharSequence, Appendable).
+	 */
+	public void compressFile(final String path, final Appendable out) throws IOException {
+		String css = processCssRootFile(path, false, new PhaseRecorder(path)).content;
+		compress(css, out);
+	}
+
+	List<CssRule> getRules() {
+		return rules;
+	}
+
+	ImportCache getImportCache() {
+		return importCache;
+	}
+
+	String minify(final String css) throws IOException {
+		com.yahoo.platform.yui.compressor.CssCompressor compressor =
+				new com.yahoo.platform.yui.compressor.CssCompressor(css);
+		compressor.setRules(rules);
+
+		StringBuilder sb = scratch.get();
+		try {
+			compressor.compress(sb, -1);
+			return sb.toString();
+		} finally {
+			releaseScratch(sb);
+		}
+	}
+
+	private static void releaseScratch(final StringBuilder sb) {
+		if (sb.capacity() > MAX_SCRATCH_CHARS) {
+			scratch.remove();
+		} else {
+			sb.setLength(0);
+		}
+	}
+
+	CssProcessingResult processCssRootFile(final String path, final boolean tryPreprocess,
+			final PhaseRecorder phases) throws IOException {
+
+		return processCssRootFile(path, tryPreprocess, phases, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param excludedFiles  Canonical paths of files not to inline, as if
+	 *                       they were imported already. They are listed
+	 *                       in processedFiles of the result.
+	 */
+	CssProcessingResult processCssRootFile(final String path, final boolean tryPreprocess,
+			final PhaseRecorder phases, final Collection<String> excludedFiles) throws IOException {
+
+		Set<String> processedFiles = new LinkedHashSet<String>(excludedFiles);
+		Map<String, String> hashes = new HashMap<String, String>();
+
+		// The directory containing the CSS file representing the compression. ie, "css/layers/"
+		Path rootPath = Paths.get(path).getParent();
+
+		CssRope rope = new CssRope();
+		ImportNode importTree =
+				inlineCssFile(rootPath, path, processedFiles, hashes, tryPreprocess, phases, rope);
+
+		return new CssProcessingResult(rope.toString(),
+				new ArrayList<String>(processedFiles), hashes, importTree);
+	}
+
+
+	/**
+	 * @return  Paths of files imported by a file before any of its rules,
+	 *          in the order of imports. Stops at the first rule, other
+	 *          at-rule or absolute import, whatever follows.
+	 */
+	List<String> getLeadingImports(final String path) throws IOException {
+		Path fileDir = Paths.get(path).getParent();
+		CssSource source = scan(importResolver.read(getCanonicalPath(path)), null);
+
+		List<String> imports = new ArrayList<String>();
+		for (CssSource.Import cssImport : source.imports) {
+			if (!cssImport.leading || isCssImportAbsolute(cssImport.path)) {
+				break;
+			}
+			// the file is its own root, so both import syntaxes resolve against its directory
+			imports.add(fileDir.resolve(cssImport.path).toFile().getPath());
+		}
+		return imports;
+	}
+
+	String getCanonicalPath(final String path) throws IOException {
+		return importCache.getCanonicalPath(path, importResolver);
+	}
+
+
+	/**
+	 * @return  A minified stylesheet with rules merged and overridden
+	 *          declarations removed, the same one if optimizing is off.
+	 */
+	String optimize(final String css) {
+		return optimizer == null ? css : optimizer.optimize(css);
+	}
+
+	StructureOptimizer getOptimizer() {
+		return optimizer;
+	}
+
+	String applyReplaces(final String css) {
+		return replacer.apply(css);
+	}
+
+	Replacer getReplacer() {
+		return replacer;
+	}
+
+
+	String wrapCssWithOutputWrapper(String css) {
+		if (outputWrapper != null) {
+			if (outputWrapper.contains(Config.OUTPUT_WRAPPER_MARKER)) {
+				css = outputWrapper.replace(
+						Config.OUTPUT_WRAPPER_MARKER, css);
+			} else {
+				throw new RuntimeException(
+						String.format(
+								"Option '%s' did not contain placeholder %s",
+								ConfigOption.OUTPUT_WRAPPER.getName(),
+								Config.OUTPUT_WRAPPER_MARKER));
+			}
+		}
+
+		return css;
+	}
+
+
+	/**
+	 * @param phases  Records reads, url rewriting and import resolution,
+	 *                the latter accounted for every file separately.
+	 */
+	CssProcessingResult processCssFile(final Path rootFilePath,
+			final String path, final Set<String> processedFiles, final boolean tryPreprocess,
+			final PhaseRecorder phases) throws IOException {
+
+		CssRope rope = new CssRope();
+		ImportNode importTree =
+				inlineCssFile(rootFilePath, path, processedFiles, null, tryPreprocess, phases, rope);
+
+		// the only copy of inlined files, however deep they are imported
+		return new CssProcessingResult(rope.toString(), null, null, importTree);
+	}
+
+	/**
+	 * Appends a file to a rope, with files it imports in place of its
+	 * import statements.
+	 *
+	 * @param hashes  Receives SHA-1 of files inlined as they were read,
+	 *                if they are hashed; may be null.
+	 * @return  Import tree of the file, null if no import report
+	 *          was asked for or the file was inlined already.
+	 */
+	private ImportNode inlineCssFile(final Path rootFilePath,
+			final String path, final Set<String> processedFiles, final Map<String, String> hashes,
+			final boolean tryPreprocess, final PhaseRecorder phases, final CssRope rope)
+			throws IOException {
+
+		/*
+			We need to prevent from processing same files more than once,
+			to minify result build file and more importantly to avoid cyclic imports.
+			That's why we need 3rd argument
+			containing paths of already processed files.
+		*/
+
+		final Path fileDir = Paths.get(path).getParent();
+		final String fileCanonicalPath = importCache.getCanonicalPath(path, importResolver);
+
+		if (!processedFiles.add(fileCanonicalPath)) {
+			return null;
+		}
+
+		phases.begin(BuildPhase.IMPORTS);
+
+		final Path relPath = fileDir.equals(rootFilePath) ?
+				null : rootFilePath.relativize(fileDir).normalize();
+
+		CssSource source = importCache.getSource(
+				fileCanonicalPath,
+				relPath == null ? null : relPath.toString(),
+				new ImportCache.Loader() {
+					@Override
+					public CssSource load() throws IOException {
+						String content;
+						String hash = null;
+						/*if (tryPreprocess && config.getPreprocessCommand() != null) {
+							content =
+									preprocessAndGetOutput(config.getPreprocessCommand(), path);
+						} else {*/
+							phases.begin(BuildPhase.READ);
+							if (hashSources && importResolver instanceof FileImportResolver) {
+								// the hash of what is inlined, the file may change after this
+								byte[] bytes = Files.readAllBytes(Paths.get(fileCanonicalPath));
+								hash = Utils.sha1Hex(bytes);
+								content = ((FileImportResolver) importResolver).decode(bytes);
+							} else {
+								content = importResolver.read(fileCanonicalPath);
+							}
+							phases.end(BuildPhase.READ, getReadBytes(fileCanonicalPath, content),
+									content.length());
+						//}
+
+						if (relPath == null) {
+							CssSource scanned = scan(content, null);
+							return new CssSource(scanned.content, scanned.imports, hash);
+						}
+						phases.begin(BuildPhase.URL_REWRITE);
+						CssSource rewritten = scan(content, relPath);
+						phases.end(BuildPhase.URL_REWRITE, content.length(), rewritten.content.length());
+						return new CssSource(rewritten.content, rewritten.imports, hash);
+					}
+				});
+
+		String inputContent = source.content;
+		if (hashes != null && source.hash != null) {
+			hashes.put(fileCanonicalPath, source.hash);
+		}
+
+		// the file's own rules and the files it imports, for the import report only
+		StringBuilder ownContent = null;
+		List<ImportNode> imports = null;
+		if (collectImportTrees) {
+			ownContent = new StringBuilder();
+			imports = new ArrayList<ImportNode>();
+		}
+
+		// characters of the file left once import statements are dropped
+		long ownLength = inputContent.length();
+		int end = 0;
+		for (CssSource.Import cssImport : source.imports) {
+			rope.append(inputContent, end, cssImport.start);
+			if (ownContent != null) {
+				ownContent.append(inputContent, end, cssImport.start);
+			}
+			ownLength -= cssImport.end - cssImport.start;
+			end = cssImport.end;
+
+			if (!isCssImportAbsolute(cssImport.path)) {
+				// url()-based relative paths have been rewritten along with other urls,
+				// so they resolve against the root file path
+				File importFile = cssImport.url ?
+						rootFilePath.resolve(cssImport.path).toFile() :
+						fileDir.resolve(cssImport.path).toFile();
+				ImportNode importTree = inlineCssFile(rootFilePath, importFile.getPath(),
+						processedFiles, hashes, false, phases, rope);
+
+				if (importTree != null) {
+					imports.add(importTree);
+				}
+			}
+		}
+		rope.append(inputContent, end, inputContent.length());
+
+		phases.end(BuildPhase.IMPORTS, inputContent.length(), ownLength);
+
+		if (ownContent == null) {
+			return null;
+		}
+		ownContent.append(inputContent, end, inputContent.length());
+		return new ImportNode(fileCanonicalPath, ownContent.toString(), imports);
+	}
+
+
+	/**
+	 * @param relPath  The path from the root file to the directory of the file
+	 *                 urls of which are rewritten.
+	 * @return         The content with relative urls rewritten.
+	 */
+	String rewriteRelativePaths(final String inputContent, final Path relPath) {
+		return scan(inputContent, relPath).content;
+	}
+
+	/**
+	 * Finds imports of a file and rewrites its urls in one CssTokenizer pass.
+	 * Urls inside comments and strings are left as they are. Unless a url is
+	 * rewritten, the content is not copied.
+	 *
+	 * @param relPath  The path from the root file to the directory of the file,
+	 *                 null not to rewrite urls.
+	 */
+	CssSource scan(final String inputContent, final Path relPath) {
+		CssTokenizer tokenizer = new CssTokenizer(inputContent);
+
+		// rewritten content up to copied, the rest is the same as the input
+		StringBuilder sb = null;
+		int copied = 0;
+
+		List<CssSource.Import> imports = new ArrayList<CssSource.Import>();
+		boolean leading = true;
+
+		// an @import being parsed: start in the output, whether it's leading,
+		// then its path once it's known to be inlined
+		int importStart = -1;
+		boolean importLeading = false;
+		String importPath = null;
+		boolean importUrl = false;
+
+		CssTokenizer.Type type;
+		while ((type = tokenizer.next()) != null) {
+			int outputStart = tokenizer.getStart() - copied + (sb == null ? 0 : sb.length());
+
+			String url = null;
+			if (type == CssTokenizer.Type.URL) {
+				url = tokenizer.getValue();
+				if (relPath != null && cssRelativeUrlPattern.matcher(url).matches()) {
+					// Combine the relative path that moves us from "css/layers/renderingFile.css" to "css/requireFile.css"
+					// WITH the relative path that moves us from "css/requireFile.css" to "images/icon.png"
+					// Path class automatically uses \, which escapes characters in HTML strings.
+					url = relPath.resolve(Paths.get(url)).normalize().toString().replace('\\', '/');
+
+					if (sb == null) {
+						sb = new StringBuilder(inputContent.length() + 256);
+					}
+					sb.append(inputContent, copied, tokenizer.getStart())
+							.append("url(").append(url).append(')');
+					copied = tokenizer.getEnd();
+				}
+			}
+
+			if (importPath != null) {
+				// the rest of an import statement
+				int end = -1;
+				if (type == CssTokenizer.Type.SEMICOLON) {
+					end = outputStart + 1;
+				} else if (type == CssTokenizer.Type.WHITESPACE) {
+					for (int i = tokenizer.getStart(); i < tokenizer.getEnd() && end < 0; i++) {
+						if (inputContent.charAt(i) == '\n' || inputContent.charAt(i) == '\r') {
+							end = outputStart + i - tokenizer.getStart();
+						}
+					}
+				}
+				if (end >= 0) {
+					imports.add(new CssSource.Import(importStart, end, importPath, importUrl, importLeading));
+					importStart = -1;
+					importPath = null;
+				}
+				continue;
+			}
+
+			if (importStart >= 0) {
+				if (type == CssTokenizer.Type.WHITESPACE) {
+					continue;
+				}
+				// unquoted paths like @import part.css; are inlined too
+				importPath = getImportPath(type == CssTokenizer.Type.URL ? url :
+						type == CssTokenizer.Type.STRING ? tokenizer.getValue() :
+						type == CssTokenizer.Type.TEXT ?
+								inputContent.substring(tokenizer.getStart(), tokenizer.getEnd()) : null);
+				importUrl = type == CssTokenizer.Type.URL;
+				if (importPath != null) {
+					continue;
+				}
+				// not an import of a CSS file, so it's left as it is
+				importStart = -1;
+				leading = false;
+			}
+
+			switch (type) {
+				case WHITESPACE:
+				case COMMENT:
+					break;
+				case AT_KEYWORD:
+					if (tokenizer.getValue().equalsIgnoreCase("import")) {
+						importStart = outputStart;
+						importLeading = leading;
+					} else {
+						leading = false;
+					}
+					break;
+				default:
+					leading = false;
+			}
+		}
+
+		String content = sb == null ?
+				inputContent : sb.append(inputContent, copied, inputContent.length()).toString();
+		if (importPath != null) {
+			// the last statement runs to the end of the file
+			imports.add(new CssSource.Import(importStart, content.length(), importPath, importUrl, importLeading));
+		}
+		return new CssSource(content, imports, null);
+	}
+
+	/**
+	 * @return  Path of a CSS file an import refers to, null if it's not one.
+	 */
+	private static String getImportPath(final String value) {
+		if (value == null) {
+			return null;
+		}
+		Matcher matcher = cssImportPathPattern.matcher(value);
+		return matcher.lookingAt() ? matcher.group() : null;
+	}
+
+/*
+	private String preprocessAndGetOutput(final String command, final String path)
+			throws IOException {
+
+		// replace %s with a file path
+
+		String expandedCommand = String.format(command, path);
+
+		CommandLine commandLine = CommandLine.parse(expandedCommand);
+
+		DefaultExecutor executor = new DefaultExecutor();
+		executor.setWatchdog(new ExecuteWatchdog(30 * 1000));
+		final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		executor.setStreamHandler(new PumpStreamHandler(stdout, stderr));
+
+		if (!config.isQuiet()) {
+			System.out.println(
+					String.format(
+							"INFO: executing preprocess command `%s`", expandedCommand));
+		}
+
+		try {
+			executor.execute(commandLine);
+
+			String innerErrors = stderr.toString(config.getCharset());
+			if (innerErrors != null && !innerErrors.equals("")) {
+				System.out.println(innerErrors);
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException(
+					String.format("Preprocessing file %s failed.", path) +
+					"\n" + stderr.toString(config.getCharset()) +
+					"\n" + e.getMessage());
+		}
+
+		return stdout.toString(config.getCharset());
+	}*/
+
+
+	private long getReadBytes(final String canonicalPath, final String content) {
+		if (importResolver instanceof FileImportResolver) {
+			return new File(canonicalPath).length();
+		}
+		return content.length();
+	}
+
+
+	private static boolean isCssImportAbsolute(final String path) {
+		boolean isAbsoluteUri;
+		try{
+			URI uri = new URI(path);
+			isAbsoluteUri = uri.isAbsolute();
+		} catch (URISyntaxException e) {
+			isAbsoluteUri = false;
+		}
+
+		return isAbsoluteUri || new File(path).isAbsolute();
+	}
+
+
+
+	final static class CssProcessingResult {
+
+		final String content;
+
+		// filled for root files only
+		final List<String> processedFiles;
+
+		// canonical path -> SHA-1 of the file as read, for root files of
+		// an engine hashing sources, only files read from disk are there
+		final Map<String, String> hashes;
+
+		// null for files already inlined and when no import report was asked for
+		final ImportNode importTree;
+
+		public CssProcessingResult(final String content,
+				final List<String> processedFiles, final Map<String, String> hashes,
+				final ImportNode importTree){
+
+			this.content = content;
+			this.processedFiles = processedFiles;
+			this.hashes = hashes;
+			this.importTree = importTree;
+		}
+
+	}
+
+
+	/**
+	 * Settings of an engine, all optional.
+	 */
+	public static final class Builder {
+
+		private ImportResolver importResolver;
+
+		private String charset = ConfigOption.CHARSET.getDefaultValue();
+
+		private List<String> disabledRules = Collections.emptyList();
+
+		private final List<Config.Replace> replaces = new ArrayList<Config.Replace>();
+
+		private String outputWrapper;
+
+		private int importCacheSize = Integer.parseInt(ConfigOption.IMPORT_CACHE_SIZE.getDefaultValue());
+
+		private boolean optimize;
+
+		/**
+		 * @param importResolver  Reads imported stylesheets, files in charset by default.
+		 */
+		public void setImportResolver(final ImportResolver importResolver) {
+			this.importResolver = importResolver;
+		}
+
+		/**
+		 * @param charset  Charset of files read by the default import resolver.
+		 */
+		public void setCharset(final String charset) {
+			this.charset = charset;
+		}
+
+		/**
+		 * @param disabledRules  Names of YUI rules not to apply, see CssRule.getRules().
+		 */
+		public void setDisabledRules(final List<String> disabledRules) {
+			this.disabledRules = disabledRules;
+		}
+
+		/**
+		 * Adds a replace applied to minified stylesheets, in the order added.
+		 *
+		 * @param search  Regex pattern.
+		 * @param replacement  Replacement, $1, $2,.. are groups of the pattern.
+		 */
+		public void addReplace(final String search, final String replacement) {
+			replaces.add(new Config.Replace(search, replacement));
+		}
+
+		/**
+		 * @param outputWrapper  Text containing %output%, which is replaced
+		 *                       with compressed stylesheets.
+		 */
+		public void setOutputWrapper(final String outputWrapper) {
+			this.outputWrapper = outputWrapper;
+		}
+
+		/**
+		 * @param importCacheSize  Megabytes of imported files kept between calls, 0 for none.
+		 */
+		public void setImportCacheSize(final int importCacheSize) {
+			this.importCacheSize = importCacheSize;
+		}
+
+		/**
+		 * @param optimize  Whether to merge rules and remove overridden
+		 *                  declarations after minifying, see StructureOptimizer.
+		 */
+		public void setOptimize(final boolean optimize) {
+			this.optimize = optimize;
+		}
+
+		public CssEngine build() {
+			return new CssEngine(
+					CssRule.getRulesExcept(disabledRules),
+					new ArrayList<Config.Replace>(replaces),
+					outputWrapper,
+					importResolver != null ? importResolver : new FileImportResolver(charset),
+					new ImportCache(importCacheSize * 1024L * 1024L),
+					false,
+					false,
+					optimize);
+		}
+
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.Arrays;
+
+/**
+ * Text of a module with its imports inlined, kept as a list of ranges
+ * of the files' contents rather than copied into a buffer of every file
+ * on the way up an import tree. Ranges are appended in order while the tree
+ * is walked and copied once, into a buffer sized for the whole module.
+ */
+final class CssRope {
+
+	private String[] texts = new String[16];
+
+	private int[] starts = new int[16];
+
+	private int[] ends = new int[16];
+
+	private int size;
+
+	private int length;
+
+
+	void append(final String text, final int start, final int end) {
+		if (start == end) {
+			return;
+		}
+		if (size == texts.length) {
+			int capacity = size * 2;
+			texts = Arrays.copyOf(texts, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+		}
+		texts[size] = text;
+		starts[size] = start;
+		ends[size] = end;
+		size++;
+		length += end - start;
+	}
+
+	int length() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		if (size == 1 && starts[0] == 0 && ends[0] == texts[0].length()) {
+			// a file without imports, nothing to copy
+			return texts[0];
+		}
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < size; i++) {
+			sb.append(texts[i], starts[i], ends[i]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident mode for local development: a localhost HTTP endpoint in front
+ * of a compressor which stays loaded and warmed up between builds.
+ *
+ *   GET /path/in/outpath.css  serves a module output from memory, built on
+ *                             demand if it isn't there yet. Responses carry
+ *                             an ETag, If-None-Match is answered with 304.
+ *   POST /build               runs a full build the way Main does and
+ *                             answers with its metrics report.
+ *
+ * Runs next to CssWatcher, which rebuilds modules when their sources
+ * change and tells the server to drop them from memory. The server builds
+ * through the watcher too, so the watcher knows what those builds import.
+ * Builds are serialized on the compressor, and outputs are only put into
+ * memory holding it, so an output read before a rebuild can't replace
+ * the rebuilt one.
+ */
+final class CssServer implements CssWatcher.Listener {
+
+	private final ConfigBuilder builder;
+
+	private final Config config;
+
+	private final CssCompressor compressor;
+
+	private final Path outputDir;
+
+	private final HttpServer server;
+
+	private CssWatcher watcher;
+
+	// canonical output path -> served output
+	private final Map<String, Output> outputs = new ConcurrentHashMap<String, Output>();
+
+
+	CssServer(final ConfigBuilder builder, final Config config,
+			final CssCompressor compressor) throws IOException {
+
+		this.builder = builder;
+		this.config = config;
+		this.compressor = compressor;
+		this.outputDir = new File(builder.getModuleOutputPath("")).getCanonicalFile().toPath();
+
+		// local development only, nothing but this machine can connect
+		this.server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getServePort()), 0);
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					CssServer.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param watcher  Builds modules for the server, set before start().
+	 */
+	void setWatcher(final CssWatcher watcher) {
+		this.watcher = watcher;
+	}
+
+	void start() {
+		server.start();
+		System.out.println("Serving " + outputDir + " on http://" +
+				InetAddress.getLoopbackAddress().getHostAddress() + ":" + config.getServePort() + "/");
+	}
+
+	void stop() {
+		server.stop(0);
+	}
+
+	@Override
+	public void modulesRebuilt(final List<ModuleResult> results) throws IOException {
+		for (ModuleResult result : results) {
+			outputs.remove(new File(result.module.outputPath).getCanonicalPath());
+		}
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+
+		try {
+			if (path.equals("/build")) {
+				if (!method.equals("POST")) {
+					sendText(exchange, 405, "Use POST to build");
+					return;
+				}
+				build(exchange);
+			} else if (method.equals("GET") || method.equals("HEAD")) {
+				serve(exchange, path);
+			} else {
+				sendText(exchange, 405, "Method " + method + " is not allowed");
+			}
+		} catch (IOException e) {
+			sendText(exchange, 500, "Building CSS failed: " + e);
+		} catch (RuntimeException e) {
+			sendText(exchange, 500, "Building CSS failed: " + e);
+		}
+	}
+
+	private void build(final HttpExchange exchange) throws IOException {
+		// modules built are dropped from memory by modulesRebuilt()
+		String metrics = watcher.build().toJson();
+		send(exchange, 200, "application/json; charset=UTF-8", metrics.getBytes("UTF-8"), null);
+	}
+
+	private void serve(final HttpExchange exchange, final String path) throws IOException {
+		File file = outputDir.resolve(path.replaceFirst("^/+", "")).normalize().toFile();
+		if (!file.toPath().startsWith(outputDir) || !file.getName().endsWith(".css")) {
+			sendText(exchange, 404, "Not found: " + path);
+			return;
+		}
+		String canonicalPath = file.getCanonicalPath();
+
+		Output output = outputs.get(canonicalPath);
+		if (output == null) {
+			output = load(file, canonicalPath);
+			if (output == null) {
+				sendText(exchange, 404, "No module is built to " + path);
+				return;
+			}
+		}
+
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		if (ifNoneMatch != null && ifNoneMatch.contains(output.etag)) {
+			exchange.getResponseHeaders().set("ETag", output.etag);
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		send(exchange, 200, "text/css; charset=" + config.getCharset(),
+				exchange.getRequestMethod().equals("HEAD") ? null : output.content, output.etag);
+	}
+
+	/**
+	 * Reads an output written by a previous build, or builds its module,
+	 * and keeps it in memory.
+	 *
+	 * @return  null if no module is built to the file.
+	 */
+	private Output load(final File file, final String canonicalPath) throws IOException {
+		synchronized (compressor) {
+			Output output = outputs.get(canonicalPath);
+			if (output != null) {
+				// loaded by another request while this one waited
+				return output;
+			}
+			if (!file.isFile()) {
+				Config.Module module = findModule(file);
+				if (module == null) {
+					return null;
+				}
+				watcher.compress(Collections.singletonList(module));
+			}
+			String css = Utils.readFile(file.getPath(), config.getCharset());
+			output = new Output(css.getBytes(config.getCharset()), "\"" + Utils.sha1Hex(css) + "\"");
+			outputs.put(canonicalPath, output);
+			return output;
+		}
+	}
+
+	private Config.Module findModule(final File file) throws IOException {
+		for (Config.Module module : builder.getModules()) {
+			if (new File(module.outputPath).getCanonicalFile().equals(file.getCanonicalFile())) {
+				return module;
+			}
+		}
+		return null;
+	}
+
+	private static void sendText(final HttpExchange exchange, final int status,
+			final String text) throws IOException {
+
+		send(exchange, status, "text/plain; charset=UTF-8", (text + "\n").getBytes("UTF-8"), null);
+	}
+
+	/**
+	 * @param body  null for a response without a body, e.g. to HEAD.
+	 */
+	private static void send(final HttpExchange exchange, final int status,
+			final String contentType, final byte[] body, final String etag) throws IOException {
+
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		// always revalidate, outputs change whenever sources do
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		if (etag != null) {
+			exchange.getResponseHeaders().set("ETag", etag);
+		}
+		exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+		if (body != null) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+
+	private static final class Output {
+
+		final byte[] content;
+
+		final String etag;
+
+		Output(final byte[] content, final String etag) {
+			this.content = content;
+			this.etag = etag;
+		}
+
+	}
+
+}
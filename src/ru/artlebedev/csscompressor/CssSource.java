@@ -0,0 +1,60 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.List;
+
+/**
+ * A file the way import inlining needs it: its content with urls rewritten
+ * and the import statements found in it, both from one CssTokenizer pass,
+ * so a file kept in the ImportCache isn't lexed again by another module.
+ */
+final class CssSource {
+
+	final String content;
+
+	final List<Import> imports;
+
+	// SHA-1 of the file's bytes, null unless the file was hashed when read
+	final String hash;
+
+
+	CssSource(final String content, final List<Import> imports, final String hash) {
+		this.content = content;
+		this.imports = imports;
+		this.hash = hash;
+	}
+
+
+	static final class Import {
+
+		// range of the statement in content, from @import to ; or a line break
+		final int start;
+		final int end;
+
+		final String path;
+
+		// url("a.css") rather than "a.css", its path is rewritten relative to the root file
+		final boolean url;
+
+		// whether only whitespace, comments and other imports precede it
+		final boolean leading;
+
+		Import(final int start, final int end, final String path,
+				final boolean url, final boolean leading) {
+			this.start = start;
+			this.end = end;
+			this.path = path;
+			this.url = url;
+			this.leading = leading;
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+/**
+ * Splits a stylesheet into the tokens import inlining and url() rewriting
+ * care about, in one pass over its characters:
+ *
+ *   @import url("a.css") screen;
+ *   ^^^^^^^ ^^^^^^^^^^^^ ^^^^^^^
+ *   |       |            |     SEMICOLON
+ *   |       URL          TEXT, after WHITESPACE
+ *   AT_KEYWORD
+ *
+ * Comments and strings are tokens of their own, so neither an @import
+ * nor a url( inside them is taken for one. Anything else is TEXT.
+ * Tokens cover the whole text, ranges of adjacent tokens touch.
+ *
+ * Usage:
+ *   CssTokenizer tokenizer = new CssTokenizer(css);
+ *   for (CssTokenizer.Type type; (type = tokenizer.next()) != null; ) {
+ *     ... tokenizer.getStart(), tokenizer.getEnd() ...
+ *   }
+ */
+final class CssTokenizer {
+
+	enum Type {
+
+		TEXT,
+
+		WHITESPACE,
+
+		/** Up to a closing * / or the end of text, like browsers do. */
+		COMMENT,
+
+		/** Up to a closing quote, or a line break if there is none. */
+		STRING,
+
+		/** url(...) with its value quoted or not, name is case-insensitive. */
+		URL,
+
+		/** @ followed by a name, like @import or @media. */
+		AT_KEYWORD,
+
+		SEMICOLON
+
+	}
+
+	private final String css;
+
+	private int pos;
+
+	private int start;
+
+	private int valueStart;
+
+	private int valueEnd;
+
+	private char quote;
+
+
+	CssTokenizer(final String css) {
+		this.css = css;
+	}
+
+	/**
+	 * @return  Type of the next token, null at the end of text.
+	 */
+	Type next() {
+		start = pos;
+		quote = 0;
+		if (pos >= css.length()) {
+			return null;
+		}
+
+		char c = css.charAt(pos);
+		if (c == '/' && css.startsWith("*", pos + 1)) {
+			int end = css.indexOf("*/", pos + 2);
+			pos = end < 0 ? css.length() : end + 2;
+			return Type.COMMENT;
+		}
+		if (c == '"' || c == '\'') {
+			valueStart = pos + 1;
+			valueEnd = skipString(pos);
+			pos = valueEnd < css.length() && css.charAt(valueEnd) == c ? valueEnd + 1 : valueEnd;
+			quote = c;
+			return Type.STRING;
+		}
+		if (isWhitespace(c)) {
+			do {
+				pos++;
+			} while (pos < css.length() && isWhitespace(css.charAt(pos)));
+			return Type.WHITESPACE;
+		}
+		if (c == ';') {
+			pos++;
+			return Type.SEMICOLON;
+		}
+		if (c == '@' && pos + 1 < css.length() && isNameChar(css.charAt(pos + 1))) {
+			valueStart = pos + 1;
+			do {
+				pos++;
+			} while (pos < css.length() && isNameChar(css.charAt(pos)));
+			valueEnd = pos;
+			return Type.AT_KEYWORD;
+		}
+		if (isUrlStart(pos) && skipUrl()) {
+			return Type.URL;
+		}
+
+		// the first character is never a start of another token here
+		pos += c == '\\' ? 2 : 1;
+		while (pos < css.length() && !isTokenStart(pos)) {
+			pos += css.charAt(pos) == '\\' ? 2 : 1;
+		}
+		pos = Math.min(pos, css.length());
+		return Type.TEXT;
+	}
+
+	int getStart() {
+		return start;
+	}
+
+	int getEnd() {
+		return pos;
+	}
+
+	/**
+	 * @return  Start of a value of a STRING or URL token without quotes,
+	 *          or of a name of an AT_KEYWORD token.
+	 */
+	int getValueStart() {
+		return valueStart;
+	}
+
+	int getValueEnd() {
+		return valueEnd;
+	}
+
+	String getValue() {
+		return css.substring(valueStart, valueEnd);
+	}
+
+	/**
+	 * @return  Quote of a STRING or URL token, 0 if its value isn't quoted.
+	 */
+	char getQuote() {
+		return quote;
+	}
+
+	private boolean isTokenStart(final int i) {
+		char c = css.charAt(i);
+		switch (c) {
+			case '"':
+			case '\'':
+			case ';':
+			case '@':
+				return true;
+			case '/':
+				return css.startsWith("*", i + 1);
+			case 'u':
+			case 'U':
+				return isUrlStart(i);
+			default:
+				return isWhitespace(c);
+		}
+	}
+
+	private boolean isUrlStart(final int i) {
+		return css.regionMatches(true, i, "url(", 0, 4) &&
+				(i == 0 || !isNameChar(css.charAt(i - 1)));
+	}
+
+	/**
+	 * Moves past url(...) at pos if it is a well-formed one.
+	 */
+	private boolean skipUrl() {
+		int i = skipWhitespace(pos + 4);
+		if (i < css.length() && (css.charAt(i) == '"' || css.charAt(i) == '\'')) {
+			char q = css.charAt(i);
+			int end = skipString(i);
+			if (end == css.length() || css.charAt(end) != q) {
+				return false;
+			}
+			valueStart = i + 1;
+			valueEnd = end;
+			i = skipWhitespace(end + 1);
+			if (i == css.length() || css.charAt(i) != ')') {
+				return false;
+			}
+			quote = q;
+			pos = i + 1;
+			return true;
+		}
+
+		valueStart = i;
+		for (; i < css.length(); i++) {
+			char c = css.charAt(i);
+			if (c == ')') {
+				valueEnd = i;
+				pos = i + 1;
+				return true;
+			}
+			if (isWhitespace(c)) {
+				valueEnd = i;
+				i = skipWhitespace(i);
+				if (i == css.length() || css.charAt(i) != ')') {
+					return false;
+				}
+				pos = i + 1;
+				return true;
+			}
+			if (c == '"' || c == '\'' || c == '(') {
+				return false;
+			}
+			if (c == '\\') {
+				i++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return  Index of a closing quote of a string starting at start,
+	 *          or of a line break or the end of text if there is none.
+	 */
+	private int skipString(final int start) {
+		char q = css.charAt(start);
+		for (int i = start + 1; i < css.length(); i++) {
+			char c = css.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == q || c == '\n' || c == '\r' || c == '\f') {
+				return i;
+			}
+		}
+		return css.length();
+	}
+
+	private int skipWhitespace(int i) {
+		while (i < css.length() && isWhitespace(css.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(final char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	private static boolean isNameChar(final char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+				c == '-' || c == '_' || c >= 0x80;
+	}
+
+}
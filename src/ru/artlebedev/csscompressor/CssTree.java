@@ -0,0 +1,355 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parse tree of a minified stylesheet: style rules with their declarations,
+ * @media and @supports blocks with the statements inside them, and raw text
+ * for everything else (comments, other at-rules, rules that don't parse the
+ * way a plain rule does). Serializing a tree gives back the text it was
+ * parsed from, so whatever isn't understood is left alone.
+ *
+ * Selectors and property names are interned per stylesheet, repeated ones
+ * share one String however many rules of a bundle they appear in.
+ */
+final class CssTree {
+
+	private final String css;
+
+	private final Map<String, String> interned = new HashMap<String, String>();
+
+	private int pos;
+
+
+	private CssTree(final String css) {
+		this.css = css;
+	}
+
+	static List<Node> parse(final String css) {
+		CssTree tree = new CssTree(css);
+		List<Node> nodes = tree.parseStatements();
+		if (tree.pos < css.length()) {
+			// an unbalanced }, keep the rest as it is
+			nodes.add(new Raw(css.substring(tree.pos)));
+		}
+		return nodes;
+	}
+
+	static String toString(final List<Node> nodes) {
+		StringBuilder sb = new StringBuilder();
+		for (Node node : nodes) {
+			node.append(sb);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Statements until the } closing a block or the end of text.
+	 */
+	private List<Node> parseStatements() {
+		List<Node> nodes = new ArrayList<Node>();
+		while (pos < css.length()) {
+			int start = pos;
+			char c = css.charAt(pos);
+			if (c == '}') {
+				break;
+			}
+			if (Character.isWhitespace(c)) {
+				while (pos < css.length() && Character.isWhitespace(css.charAt(pos))) {
+					pos++;
+				}
+				nodes.add(new Raw(css.substring(start, pos)));
+				continue;
+			}
+			if (css.startsWith("/*", pos)) {
+				int end = css.indexOf("*/", pos + 2);
+				pos = end < 0 ? css.length() : end + 2;
+				nodes.add(new Raw(css.substring(start, pos)));
+				continue;
+			}
+
+			int preludeEnd = skipTo(pos, "{;}");
+			if (preludeEnd == css.length() || css.charAt(preludeEnd) != '{') {
+				// an at-rule statement like @charset, or garbage
+				pos = preludeEnd < css.length() && css.charAt(preludeEnd) == ';' ?
+						preludeEnd + 1 : preludeEnd;
+				nodes.add(new Raw(css.substring(start, pos)));
+				continue;
+			}
+
+			String prelude = css.substring(start, preludeEnd);
+			if (prelude.startsWith("@")) {
+				String name = getAtRuleName(prelude);
+				if (name.equals("media") || name.equals("supports")) {
+					pos = preludeEnd + 1;
+					List<Node> children = parseStatements();
+					if (pos < css.length()) {
+						pos++;
+						nodes.add(new Block(prelude, children));
+					} else {
+						// unclosed, keep as it is
+						nodes.add(new Raw(css.substring(start)));
+					}
+				} else {
+					pos = skipBlock(preludeEnd);
+					nodes.add(new Raw(css.substring(start, pos)));
+				}
+				continue;
+			}
+
+			int blockEnd = skipTo(preludeEnd + 1, "{}");
+			if (blockEnd == css.length() || css.charAt(blockEnd) == '{') {
+				// nested rules or unclosed, not a plain style rule
+				pos = skipBlock(preludeEnd);
+				nodes.add(new Raw(css.substring(start, pos)));
+				continue;
+			}
+			pos = blockEnd + 1;
+			Rule rule = parseRule(prelude, preludeEnd + 1, blockEnd);
+			nodes.add(rule == null ? new Raw(css.substring(start, pos)) : rule);
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return  Null if declarations are not all property:value pairs.
+	 */
+	private Rule parseRule(final String selector, final int start, final int end) {
+		if (selector.trim().isEmpty() || css.substring(start, end).contains("/*")) {
+			return null;
+		}
+
+		List<Declaration> declarations = new ArrayList<Declaration>();
+		int from = start;
+		while (from < end) {
+			int to = skipTo(from, end, ";");
+			if (to > from) {
+				Declaration declaration = parseDeclaration(from, to);
+				if (declaration == null) {
+					return null;
+				}
+				declarations.add(declaration);
+			}
+			from = to + 1;
+		}
+		if (declarations.isEmpty()) {
+			return null;
+		}
+		return new Rule(intern(selector), declarations);
+	}
+
+	private Declaration parseDeclaration(final int start, final int end) {
+		int colon = skipTo(start, end, ":");
+		if (colon == end || colon == start) {
+			return null;
+		}
+		String property = css.substring(start, colon);
+		String value = css.substring(colon + 1, end);
+		if (!property.equals(property.trim()) || value.isEmpty()) {
+			return null;
+		}
+
+		boolean important = false;
+		int bang = value.lastIndexOf('!');
+		if (bang >= 0 && value.substring(bang + 1).trim().equalsIgnoreCase("important")) {
+			important = true;
+			value = value.substring(0, bang);
+			if (!value.equals(value.trim())) {
+				// "red !important" would come back as "red!important"
+				return null;
+			}
+		}
+		return new Declaration(intern(property), value, important);
+	}
+
+	private int skipTo(final int from, final String stops) {
+		return skipTo(from, css.length(), stops);
+	}
+
+	/**
+	 * @return  Index of the first of stops outside strings, parentheses
+	 *          and brackets from from to limit, limit if there is none.
+	 */
+	private int skipTo(final int from, final int limit, final String stops) {
+		int depth = 0;
+		for (int i = from; i < limit; i++) {
+			char c = css.charAt(i);
+			if (c == '"' || c == '\'') {
+				i = skipString(i);
+			} else if (c == '\\') {
+				i++;
+			} else if (c == '(' || c == '[') {
+				depth++;
+			} else if ((c == ')' || c == ']') && depth > 0) {
+				depth--;
+			} else if (depth == 0 && stops.indexOf(c) >= 0) {
+				return i;
+			}
+		}
+		return limit;
+	}
+
+	private int skipString(final int start) {
+		char quote = css.charAt(start);
+		for (int i = start + 1; i < css.length(); i++) {
+			char c = css.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == quote || c == '\n') {
+				return i;
+			}
+		}
+		return css.length();
+	}
+
+	/**
+	 * @return  Index right after the } matching a { at open.
+	 */
+	private int skipBlock(final int open) {
+		int depth = 0;
+		for (int i = open; i < css.length(); i++) {
+			int next = skipTo(i, "{}");
+			if (next == css.length()) {
+				return next;
+			}
+			depth += css.charAt(next) == '{' ? 1 : -1;
+			if (depth == 0) {
+				return next + 1;
+			}
+			i = next;
+		}
+		return css.length();
+	}
+
+	private static String getAtRuleName(final String prelude) {
+		int end = 1;
+		while (end < prelude.length() &&
+				(Character.isLetterOrDigit(prelude.charAt(end)) || prelude.charAt(end) == '-')) {
+			end++;
+		}
+		return prelude.substring(1, end).toLowerCase();
+	}
+
+	private String intern(final String value) {
+		String existing = interned.get(value);
+		if (existing == null) {
+			interned.put(value, value);
+			existing = value;
+		}
+		return existing;
+	}
+
+
+	abstract static class Node {
+
+		abstract void append(StringBuilder sb);
+
+	}
+
+	/**
+	 * Text kept as it is.
+	 */
+	static final class Raw extends Node {
+
+		final String text;
+
+		Raw(final String text) {
+			this.text = text;
+		}
+
+		@Override
+		void append(final StringBuilder sb) {
+			sb.append(text);
+		}
+
+	}
+
+	/**
+	 * A conditional group rule like @media, its statements are parsed.
+	 */
+	static final class Block extends Node {
+
+		final String prelude;
+
+		final List<Node> children;
+
+		Block(final String prelude, final List<Node> children) {
+			this.prelude = prelude;
+			this.children = children;
+		}
+
+		@Override
+		void append(final StringBuilder sb) {
+			sb.append(prelude).append('{');
+			for (Node child : children) {
+				child.append(sb);
+			}
+			sb.append('}');
+		}
+
+	}
+
+	static final class Rule extends Node {
+
+		String selector;
+
+		final List<Declaration> declarations;
+
+		Rule(final String selector, final List<Declaration> declarations) {
+			this.selector = selector;
+			this.declarations = declarations;
+		}
+
+		@Override
+		void append(final StringBuilder sb) {
+			sb.append(selector).append('{');
+			appendDeclarations(sb);
+			sb.append('}');
+		}
+
+		void appendDeclarations(final StringBuilder sb) {
+			for (int i = 0; i < declarations.size(); i++) {
+				if (i > 0) {
+					sb.append(';');
+				}
+				declarations.get(i).append(sb);
+			}
+		}
+
+	}
+
+	static final class Declaration {
+
+		final String property;
+
+		final String value;
+
+		final boolean important;
+
+		Declaration(final String property, final String value, final boolean important) {
+			this.property = property;
+			this.value = value;
+			this.important = important;
+		}
+
+		void append(final StringBuilder sb) {
+			sb.append(property).append(':').append(value);
+			if (important) {
+				sb.append("!important");
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,379 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long running mode rebuilding modules whenever their sources change.
+ *
+ * Keeps a reverse index from every file to the modules which inline it,
+ * so a change of a partial rebuilds only the modules importing it.
+ * Events are debounced: a rebuild starts once the input tree was quiet
+ * for DEBOUNCE_MILLIS, so saving many files at once rebuilds each
+ * affected module once.
+ *
+ * A module failing to build doesn't hold back the others. It keeps
+ * the dependencies of its last successful build and is retried whenever
+ * files are created or deleted, as it may have failed on a missing import.
+ *
+ * Other threads (CssServer) build through build() and compress(), so what
+ * they build is indexed as well. Builds are serialized on the compressor,
+ * the index is guarded by the watcher and never locked while waiting
+ * for the compressor.
+ */
+final class CssWatcher {
+
+	private static final long DEBOUNCE_MILLIS = 150;
+
+	private final ConfigBuilder builder;
+
+	private final Config config;
+
+	private final CssCompressor compressor;
+
+	private final Listener listener;
+
+	private final WatchService watchService;
+
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+
+	// module input -> module, for modules currently found in inpath
+	private final Map<String, Config.Module> modules =
+			new LinkedHashMap<String, Config.Module>();
+
+	// canonical path of a file -> inputs of modules inlining it
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+	// module input -> canonical paths of files it inlines
+	private final Map<String, List<String>> dependencies = new HashMap<String, List<String>>();
+
+	// inputs of modules the last build of which failed
+	private final Set<String> failedInputs = new LinkedHashSet<String>();
+
+
+	/**
+	 * @param listener  Told about every rebuild, may be null.
+	 */
+	CssWatcher(final ConfigBuilder builder, final Config config,
+			final CssCompressor compressor, final Listener listener) throws IOException {
+
+		this.builder = builder;
+		this.config = config;
+		this.compressor = compressor;
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Builds all modules and then rebuilds them on changes until interrupted.
+	 */
+	void watch() throws IOException {
+		Path inputPath = builder.getFullInputPath();
+		registerRecursively(inputPath);
+
+		for (Config.Module module : config.getModules()) {
+			modules.put(module.input, module);
+		}
+		rebuild(new ArrayList<Config.Module>(modules.values()));
+
+		try {
+			while (true) {
+				Set<String> changedFiles = new LinkedHashSet<String>();
+				boolean structureChanged = collectEvents(watchService.take(), changedFiles);
+
+				WatchKey key;
+				while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					structureChanged |= collectEvents(key, changedFiles);
+				}
+
+				filesChanged(changedFiles, structureChanged);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			watchService.close();
+		}
+	}
+
+	/**
+	 * @return  Whether css files or catalogs were created or deleted, or events were lost.
+	 */
+	private boolean collectEvents(final WatchKey key, final Set<String> changedFiles)
+			throws IOException {
+
+		Path dir = watchedDirs.get(key);
+		boolean structureChanged = false;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				structureChanged = true;
+				changedFiles.addAll(getDependencyFiles());
+				continue;
+			}
+
+			Path path = dir.resolve((Path) event.context());
+
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+				registerRecursively(path);
+				structureChanged = true;
+				continue;
+			}
+
+			if (!path.toString().endsWith(".css")) {
+				// images and fonts matter only to modules they are inlined into
+				String canonicalPath = path.toFile().getCanonicalPath();
+				if (!getDependents(canonicalPath).isEmpty()) {
+					changedFiles.add(canonicalPath);
+				}
+				continue;
+			}
+
+			if (event.kind() != ENTRY_MODIFY) {
+				structureChanged = true;
+			}
+			changedFiles.add(path.toFile().getCanonicalPath());
+		}
+
+		if (!key.reset()) {
+			// catalog is gone
+			watchedDirs.remove(key);
+			structureChanged = true;
+		}
+
+		return structureChanged;
+	}
+
+	private void filesChanged(final Set<String> changedFiles, final boolean structureChanged)
+			throws IOException {
+
+		List<Config.Module> affected = new ArrayList<Config.Module>();
+		Set<String> affectedInputs = new LinkedHashSet<String>();
+
+		if (structureChanged) {
+			// modules are all css files in inpath, so some could appear or vanish
+			Map<String, Config.Module> previous = new HashMap<String, Config.Module>(modules);
+			modules.clear();
+			for (Config.Module module : builder.getModules()) {
+				modules.put(module.input, module);
+				if (!previous.containsKey(module.input)) {
+					affectedInputs.add(module.input);
+				}
+			}
+			for (String input : previous.keySet()) {
+				if (!modules.containsKey(input)) {
+					forgetModule(input);
+				}
+			}
+			affectedInputs.addAll(getFailedInputs());
+		}
+
+		for (String changedFile : changedFiles) {
+			compressor.invalidate(changedFile);
+			affectedInputs.addAll(getDependents(changedFile));
+		}
+
+		for (String input : affectedInputs) {
+			Config.Module module = modules.get(input);
+			if (module != null) {
+				affected.add(module);
+			}
+		}
+
+		if (affected.isEmpty()) {
+			return;
+		}
+
+		if (!config.isQuiet()) {
+			System.out.println(String.format(
+					"Changed %s, rebuilding %d module(s)",
+					changedFiles.size() == 1 ?
+							changedFiles.iterator().next() : changedFiles.size() + " files",
+					affected.size()));
+		}
+		rebuild(affected);
+	}
+
+	private void rebuild(final List<Config.Module> affected) throws IOException {
+		long start = System.currentTimeMillis();
+
+		try {
+			synchronized (compressor) {
+				watchInputs(affected);
+				Map<Config.Module, Exception> failures = new LinkedHashMap<Config.Module, Exception>();
+				rebuilt(compressor.compress(affected, failures), failures);
+			}
+		} catch (IOException e) {
+			System.out.println("Building CSS failed: " + e);
+			return;
+		} catch (RuntimeException e) {
+			System.out.println("Building CSS failed: " + e);
+			return;
+		}
+
+		System.out.println("Finished building CSS in " +
+				(System.currentTimeMillis() - start) + "ms, watching for changes...");
+	}
+
+	/**
+	 * Runs a full build the way Main does, for another thread.
+	 *
+	 * @return  Metrics of the build.
+	 */
+	BuildMetrics build() throws IOException {
+		synchronized (compressor) {
+			compressor.compress();
+			BuildMetrics metrics = compressor.getMetrics();
+			rebuilt(metrics.getResults(), Collections.<Config.Module, Exception>emptyMap());
+			return metrics;
+		}
+	}
+
+	/**
+	 * Compresses modules for another thread, e.g. one missing its output.
+	 */
+	void compress(final List<Config.Module> modules) throws IOException {
+		synchronized (compressor) {
+			watchInputs(modules);
+			rebuilt(compressor.compress(modules), Collections.<Config.Module, Exception>emptyMap());
+		}
+	}
+
+	/**
+	 * Until a module is built successfully at least its own input is watched.
+	 */
+	private void watchInputs(final List<Config.Module> modules) throws IOException {
+		for (Config.Module module : modules) {
+			addDependent(new File(module.input).getCanonicalPath(), module.input);
+		}
+	}
+
+	/**
+	 * Tells the listener about modules built and indexes what they import,
+	 * called holding the compressor, so the index follows builds in order.
+	 */
+	private void rebuilt(final List<ModuleResult> results,
+			final Map<Config.Module, Exception> failures) throws IOException {
+
+		if (listener != null) {
+			listener.modulesRebuilt(results);
+		}
+
+		synchronized (this) {
+			for (Map.Entry<Config.Module, Exception> failure : failures.entrySet()) {
+				failedInputs.add(failure.getKey().input);
+				System.out.println("Building " + failure.getKey().input + " failed: " + failure.getValue());
+			}
+
+			for (ModuleResult result : results) {
+				failedInputs.remove(result.module.input);
+				forgetDependencies(result.module.input);
+
+				dependencies.put(result.module.input, result.dependencies);
+				for (String dependency : result.dependencies) {
+					addDependent(dependency, result.module.input);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return  Inputs of modules inlining a file.
+	 */
+	private synchronized Set<String> getDependents(final String canonicalPath) {
+		Set<String> inputs = dependents.get(canonicalPath);
+		return inputs == null ? Collections.<String>emptySet() : new LinkedHashSet<String>(inputs);
+	}
+
+	private synchronized Set<String> getDependencyFiles() {
+		return new LinkedHashSet<String>(dependents.keySet());
+	}
+
+	private synchronized Set<String> getFailedInputs() {
+		return new LinkedHashSet<String>(failedInputs);
+	}
+
+	private synchronized void forgetModule(final String input) {
+		forgetDependencies(input);
+		failedInputs.remove(input);
+	}
+
+	private synchronized void addDependent(final String dependency, final String input) {
+		Set<String> inputs = dependents.get(dependency);
+		if (inputs == null) {
+			inputs = new LinkedHashSet<String>();
+			dependents.put(dependency, inputs);
+		}
+		inputs.add(input);
+	}
+
+	private synchronized void forgetDependencies(final String input) {
+		List<String> previous = dependencies.remove(input);
+		if (previous == null) {
+			return;
+		}
+		for (String dependency : previous) {
+			Set<String> inputs = dependents.get(dependency);
+			if (inputs != null) {
+				inputs.remove(input);
+				if (inputs.isEmpty()) {
+					dependents.remove(dependency);
+				}
+			}
+		}
+	}
+
+	private void registerRecursively(final Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir,
+					final BasicFileAttributes attrs) throws IOException {
+
+				WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchedDirs.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+
+	interface Listener {
+
+		/**
+		 * Called once modules affected by a change are written.
+		 */
+		void modulesRebuilt(List<ModuleResult> results) throws IOException;
+
+	}
+
+}
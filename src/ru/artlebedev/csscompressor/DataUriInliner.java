@@ -0,0 +1,196 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replaces url()s of small images and fonts in a module with data URIs,
+ * so a page doesn't make a request for each of them:
+ *
+ *   .icon{background:url(img/icon.png)}  ->  .icon{background:url(data:image/png;base64,iVBO...)}
+ *
+ * Only relative urls of files with a known type no bigger than a limit are
+ * inlined. SVG is URL-encoded, which is smaller than base64 for text, the
+ * rest is base64. Urls with a query or a fragment are left alone, an SVG
+ * sprite or a cache buster needs the file itself.
+ *
+ * Encoded files are cached for the whole build by canonical path, and
+ * encoded again only when their size or modification time change, so an
+ * icon used by every module is read once. Safe to share between threads.
+ */
+final class DataUriInliner {
+
+	private static final Map<String, String> MEDIA_TYPES = new HashMap<String, String>();
+	static {
+		MEDIA_TYPES.put("png", "image/png");
+		MEDIA_TYPES.put("gif", "image/gif");
+		MEDIA_TYPES.put("jpg", "image/jpeg");
+		MEDIA_TYPES.put("jpeg", "image/jpeg");
+		MEDIA_TYPES.put("webp", "image/webp");
+		MEDIA_TYPES.put("ico", "image/x-icon");
+		MEDIA_TYPES.put("svg", "image/svg+xml");
+		MEDIA_TYPES.put("woff", "font/woff");
+		MEDIA_TYPES.put("woff2", "font/woff2");
+		MEDIA_TYPES.put("ttf", "font/ttf");
+		MEDIA_TYPES.put("otf", "font/otf");
+	}
+
+	private static final String SVG_MEDIA_TYPE = "image/svg+xml";
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final long maxBytes;
+
+	private final Map<String, Asset> assets = new ConcurrentHashMap<String, Asset>();
+
+
+	/**
+	 * @param maxBytes  Size of the biggest file inlined.
+	 */
+	DataUriInliner(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param directory  The directory urls of css are relative to,
+	 *                   the one of a module input.
+	 * @param inlined    Receives canonical paths of files inlined
+	 *                   with SHA-1 of their content inlined.
+	 * @return           The css with urls of small files replaced.
+	 */
+	String inline(final String css, final Path directory,
+			final Map<String, String> inlined) throws IOException {
+
+		CssTokenizer tokenizer = new CssTokenizer(css);
+
+		// the result up to copied, the rest is the same as css
+		StringBuilder sb = null;
+		int copied = 0;
+
+		CssTokenizer.Type type;
+		while ((type = tokenizer.next()) != null) {
+			if (type != CssTokenizer.Type.URL) {
+				continue;
+			}
+			String url = tokenizer.getValue();
+			if (!isInlinable(url)) {
+				continue;
+			}
+
+			File file = directory.resolve(url).toFile();
+			if (!file.isFile()) {
+				continue;
+			}
+			String path = file.getCanonicalPath();
+			Asset asset = getAsset(path, getMediaType(url));
+			if (asset.dataUri == null) {
+				continue;
+			}
+			String dataUri = asset.dataUri;
+
+			if (sb == null) {
+				sb = new StringBuilder(css.length() + dataUri.length() + 256);
+			}
+			sb.append(css, copied, tokenizer.getStart()).append("url(").append(dataUri).append(')');
+			copied = tokenizer.getEnd();
+			inlined.put(path, asset.hash);
+		}
+
+		return sb == null ? css : sb.append(css, copied, css.length()).toString();
+	}
+
+	/**
+	 * @return  A file encoded, with no data URI if it is too big to inline.
+	 */
+	private Asset getAsset(final String path, final String mediaType) throws IOException {
+		File file = new File(path);
+		long size = file.length();
+		long lastModified = file.lastModified();
+
+		Asset asset = assets.get(path);
+		if (asset == null || asset.size != size || asset.lastModified != lastModified) {
+			// files of several modules may be encoded twice by a race, that's harmless
+			if (size > maxBytes) {
+				asset = new Asset(size, lastModified, null, null);
+			} else {
+				byte[] content = Files.readAllBytes(file.toPath());
+				asset = new Asset(size, lastModified, encode(content, mediaType), Utils.sha1Hex(content));
+			}
+			assets.put(path, asset);
+		}
+		return asset;
+	}
+
+	private static String encode(final byte[] content, final String mediaType) {
+		if (!mediaType.equals(SVG_MEDIA_TYPE)) {
+			return "data:" + mediaType + ";base64," + Base64.getEncoder().encodeToString(content);
+		}
+
+		// spaces are encoded too, the YUI compressor strips whitespace of data URIs
+		StringBuilder sb = new StringBuilder(content.length + 32);
+		sb.append("\"data:").append(mediaType).append(',');
+		for (byte b : content) {
+			int c = b & 0xff;
+			if (c <= 0x20 || c >= 0x7f || "\"%#<>\\^`{|}".indexOf(c) >= 0) {
+				sb.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+			} else {
+				sb.append((char) c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static boolean isInlinable(final String url) {
+		if (url.isEmpty() || url.startsWith("/") || url.indexOf(':') >= 0 ||
+				url.indexOf('?') >= 0 || url.indexOf('#') >= 0 || url.indexOf('\\') >= 0) {
+			return false;
+		}
+		return getMediaType(url) != null;
+	}
+
+	private static String getMediaType(final String url) {
+		int dot = url.lastIndexOf('.');
+		if (dot < 0 || url.indexOf('/', dot) >= 0) {
+			return null;
+		}
+		return MEDIA_TYPES.get(url.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+
+	private static final class Asset {
+
+		final long size;
+
+		final long lastModified;
+
+		// null if the file is too big
+		final String dataUri;
+
+		// SHA-1 of the content encoded, null if the file is too big
+		final String hash;
+
+		Asset(final long size, final long lastModified, final String dataUri, final String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.dataUri = dataUri;
+			this.hash = hash;
+		}
+
+	}
+
+}
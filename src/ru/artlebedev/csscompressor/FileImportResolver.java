@@ -0,0 +1,44 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads stylesheets from files, keyed by their canonical paths.
+ */
+public final class FileImportResolver implements ImportResolver {
+
+	private final String charset;
+
+
+	public FileImportResolver(final String charset) {
+		this.charset = charset;
+	}
+
+	@Override
+	public String getCanonicalPath(final String path) throws IOException {
+		return new File(path).getCanonicalPath();
+	}
+
+	@Override
+	public String read(final String canonicalPath) throws IOException {
+		return Utils.readFile(canonicalPath, charset);
+	}
+
+	/**
+	 * Decodes bytes of a file the way read() does.
+	 */
+	String decode(final byte[] bytes) throws IOException {
+		return Utils.decode(ByteBuffer.wrap(bytes), charset);
+	}
+
+}
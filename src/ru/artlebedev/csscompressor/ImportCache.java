@@ -0,0 +1,220 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Build-wide cache of imported CSS files shared by all modules.
+ *
+ * Files are stored after decoding and url() rewriting, along with
+ * their imports, so the key is a canonical path of a file plus
+ * the relative path its urls were rewritten with.
+ * Entries are evicted in least recently used order once the estimated memory
+ * footprint exceeds a limit. Canonical paths are memoized separately,
+ * they are small and never evicted.
+ *
+ * The cache is safe to use from several compressing threads. Loading of one
+ * entry is serialized, so a file shared by modules compressed in parallel
+ * is still read only once.
+ */
+final class ImportCache {
+
+	interface Loader {
+		CssSource load() throws IOException;
+	}
+
+	// rough per-entry overhead of a map entry, a key and a holder object
+	private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+	// rough size of an import found in a file, without its path
+	private static final int IMPORT_OVERHEAD_BYTES = 48;
+
+	private final long maxSizeBytes;
+
+	private final Map<String, String> canonicalPaths =
+			new ConcurrentHashMap<String, String>();
+
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long sizeBytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+
+	/**
+	 * @param maxSizeBytes  Memory bound for cached contents, 0 disables
+	 *                      caching of contents (canonical paths are still cached).
+	 */
+	ImportCache(final long maxSizeBytes) {
+		this.maxSizeBytes = maxSizeBytes;
+	}
+
+	String getCanonicalPath(final String path, final ImportResolver resolver) throws IOException {
+		String canonicalPath = canonicalPaths.get(path);
+		if (canonicalPath == null) {
+			canonicalPath = resolver.getCanonicalPath(path);
+			canonicalPaths.put(path, canonicalPath);
+		}
+		return canonicalPath;
+	}
+
+	/**
+	 * @param canonicalPath  Canonical path of a file.
+	 * @param rewriteContext Relative path urls of a file are rewritten with,
+	 *                       null if they are not rewritten.
+	 * @param loader         Reads and rewrites a file on a cache miss.
+	 */
+	CssSource getSource(final String canonicalPath, final String rewriteContext,
+			final Loader loader) throws IOException {
+
+		if (maxSizeBytes <= 0) {
+			synchronized (this) {
+				misses++;
+			}
+			return loader.load();
+		}
+
+		String key = getKey(canonicalPath, rewriteContext);
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				entry = new Entry(canonicalPath, ENTRY_OVERHEAD_BYTES + 2L * key.length());
+				entries.put(key, entry);
+				misses++;
+			} else {
+				hits++;
+			}
+		}
+
+		synchronized (entry) {
+			if (entry.source == null) {
+				try {
+					entry.source = loader.load();
+				} catch (IOException e) {
+					entryFailed(key, entry);
+					throw e;
+				} catch (RuntimeException e) {
+					entryFailed(key, entry);
+					throw e;
+				}
+				entryLoaded(key, entry);
+			}
+			return entry.source;
+		}
+	}
+
+	/**
+	 * Drops every cached content of a file regardless of its rewrite context,
+	 * and canonical paths leading to it or memoized for its path, as the file
+	 * may have been renamed or a symlink to it changed.
+	 */
+	synchronized void invalidate(final String canonicalPath) {
+		Iterator<Map.Entry<String, String>> paths = canonicalPaths.entrySet().iterator();
+		while (paths.hasNext()) {
+			Map.Entry<String, String> path = paths.next();
+			if (path.getValue().equals(canonicalPath) || path.getKey().equals(canonicalPath)) {
+				paths.remove();
+			}
+		}
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.canonicalPath.equals(canonicalPath)) {
+				if (entry.source != null) {
+					sizeBytes -= entry.sizeBytes;
+				}
+				iterator.remove();
+			}
+		}
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Removes an entry which failed to load, so the next module reading
+	 * the file tries again instead of waiting on an empty entry.
+	 */
+	private synchronized void entryFailed(final String key, final Entry entry) {
+		if (entries.get(key) == entry) {
+			entries.remove(key);
+		}
+	}
+
+	private synchronized void entryLoaded(final String key, final Entry entry) {
+		if (entries.get(key) != entry) {
+			// evicted or invalidated while loading, don't account for it
+			return;
+		}
+
+		entry.sizeBytes += 2L * entry.source.content.length();
+		for (CssSource.Import cssImport : entry.source.imports) {
+			entry.sizeBytes += IMPORT_OVERHEAD_BYTES + 2L * cssImport.path.length();
+		}
+		sizeBytes += entry.sizeBytes;
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+			Entry eldest = iterator.next();
+			if (eldest == entry) {
+				// never evict what we are about to return
+				continue;
+			}
+			if (eldest.source == null) {
+				// still loading in another thread, it's accounted when loaded
+				continue;
+			}
+			sizeBytes -= eldest.sizeBytes;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	private static String getKey(final String canonicalPath, final String rewriteContext) {
+		return rewriteContext == null ?
+				canonicalPath : canonicalPath + '\u0000' + rewriteContext;
+	}
+
+
+
+	private final static class Entry {
+
+		final String canonicalPath;
+		long sizeBytes;
+		CssSource source;
+
+		Entry(final String canonicalPath, final long sizeBytes) {
+			this.canonicalPath = canonicalPath;
+			this.sizeBytes = sizeBytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.List;
+
+/**
+ * A file in the import tree of a module, as processCssFile inlined it.
+ * Files a module already inlined elsewhere are not repeated.
+ */
+final class ImportNode {
+
+	/** Canonical path. */
+	final String path;
+
+	final List<ImportNode> imports;
+
+	/**
+	 * Rules of this file alone, i.e. with its @import statements
+	 * removed, kept until the sizes are measured.
+	 */
+	private String content;
+
+	private long bytes = -1;
+
+	private long minifiedBytes = -1;
+
+
+	ImportNode(final String path, final String content, final List<ImportNode> imports) {
+		this.path = path;
+		this.content = content;
+		this.imports = imports;
+	}
+
+	String getContent() {
+		return content;
+	}
+
+	/**
+	 * Stores sizes of the file's own rules and lets its content go.
+	 */
+	void setSizes(final long bytes, final long minifiedBytes) {
+		this.bytes = bytes;
+		this.minifiedBytes = minifiedBytes;
+		this.content = null;
+	}
+
+	/**
+	 * @return  Encoded size of the file's own rules as they are inlined.
+	 */
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return  Encoded size of the file's own rules minified on their own,
+	 *          which is what the file adds to a minified module give or take
+	 *          a few characters at its boundaries.
+	 */
+	long getMinifiedBytes() {
+		return minifiedBytes;
+	}
+
+	long getTotalBytes() {
+		long total = bytes;
+		for (ImportNode node : imports) {
+			total += node.getTotalBytes();
+		}
+		return total;
+	}
+
+	long getTotalMinifiedBytes() {
+		long total = minifiedBytes;
+		for (ImportNode node : imports) {
+			total += node.getTotalMinifiedBytes();
+		}
+		return total;
+	}
+
+}
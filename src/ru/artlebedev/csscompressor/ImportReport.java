@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the bytes of every module come from: its import tree with sizes
+ * of every file before and after minification, and the files inlined
+ * into more than one module with bytes they duplicate across outputs.
+ * Written as JSON:
+ *
+ *   {
+ *     "modules": [
+ *       {"input": "...", "output": "...", "outputBytes": 1234,
+ *        "tree": {"file": "...", "bytes": 2048, "minifiedBytes": 1024,
+ *                 "totalBytes": 4096, "totalMinifiedBytes": 2048,
+ *                 "imports": [...]}},
+ *       ...
+ *     ],
+ *     "sharedFiles": [
+ *       {"file": "...", "modules": 12, "bytes": 2048, "minifiedBytes": 1024,
+ *        "duplicatedBytes": 11264, "importedBy": ["...", ...]},
+ *       ...
+ *     ]
+ *   }
+ *
+ * bytes and minifiedBytes are of a file's own rules, totals include its
+ * imports. Shared files are sorted by duplicatedBytes, minified bytes of
+ * all copies but one, so partials bloating most outputs come first.
+ */
+final class ImportReport {
+
+	private static final String CHARSET = "UTF-8";
+
+	private final List<ModuleResult> results;
+
+
+	ImportReport(final List<ModuleResult> results) {
+		this.results = new ArrayList<ModuleResult>(results);
+	}
+
+	void write(final String path) throws IOException {
+		Utils.writeToFile(path, toJson(), CHARSET);
+	}
+
+	/**
+	 * @return  Files imported by at least two modules, most duplicated bytes first.
+	 */
+	List<SharedFile> getSharedFiles() {
+		Map<String, SharedFile> files = new LinkedHashMap<String, SharedFile>();
+		for (ModuleResult result : results) {
+			if (result.importTree != null) {
+				collectFiles(result.importTree, result.module.input, files);
+			}
+		}
+
+		List<SharedFile> shared = new ArrayList<SharedFile>();
+		for (SharedFile file : files.values()) {
+			if (file.importedBy.size() > 1) {
+				shared.add(file);
+			}
+		}
+		Collections.sort(shared, new Comparator<SharedFile>() {
+			@Override
+			public int compare(final SharedFile a, final SharedFile b) {
+				long difference = b.getDuplicatedBytes() - a.getDuplicatedBytes();
+				return difference > 0 ? 1 : difference < 0 ? -1 : a.path.compareTo(b.path);
+			}
+		});
+		return shared;
+	}
+
+	private static void collectFiles(final ImportNode node, final String module,
+			final Map<String, SharedFile> files) {
+
+		SharedFile file = files.get(node.path);
+		if (file == null) {
+			file = new SharedFile(node.path, node.getBytes(), node.getMinifiedBytes());
+			files.put(node.path, file);
+		}
+		file.importedBy.add(module);
+		file.totalMinifiedBytes += node.getMinifiedBytes();
+
+		for (ImportNode child : node.imports) {
+			collectFiles(child, module, files);
+		}
+	}
+
+	String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+
+		sb.append("  \"modules\": [");
+		boolean first = true;
+		for (ModuleResult result : results) {
+			if (result.importTree == null) {
+				continue;
+			}
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    {\"input\": ");
+			Utils.appendJsonString(sb, result.module.input);
+			sb.append(", \"output\": ");
+			Utils.appendJsonString(sb, result.module.outputPath);
+			sb.append(", \"outputBytes\": ").append(new File(result.module.outputPath).length());
+			sb.append(",\n     \"tree\": ");
+			appendNode(sb, result.importTree, "     ");
+			sb.append('}');
+		}
+		sb.append(first ? "],\n" : "\n  ],\n");
+
+		sb.append("  \"sharedFiles\": [");
+		first = true;
+		for (SharedFile file : getSharedFiles()) {
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    {\"file\": ");
+			Utils.appendJsonString(sb, file.path);
+			sb.append(", \"modules\": ").append(file.importedBy.size());
+			sb.append(", \"bytes\": ").append(file.bytes);
+			sb.append(", \"minifiedBytes\": ").append(file.minifiedBytes);
+			sb.append(", \"duplicatedBytes\": ").append(file.getDuplicatedBytes());
+			sb.append(",\n     \"importedBy\": [");
+			for (int i = 0; i < file.importedBy.size(); i++) {
+				sb.append(i == 0 ? "" : ", ");
+				Utils.appendJsonString(sb, file.importedBy.get(i));
+			}
+			sb.append("]}");
+		}
+		sb.append(first ? "]\n" : "\n  ]\n");
+
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static void appendNode(final StringBuilder sb, final ImportNode node,
+			final String indent) {
+
+		sb.append("{\"file\": ");
+		Utils.appendJsonString(sb, node.path);
+		sb.append(", \"bytes\": ").append(node.getBytes());
+		sb.append(", \"minifiedBytes\": ").append(node.getMinifiedBytes());
+		sb.append(", \"totalBytes\": ").append(node.getTotalBytes());
+		sb.append(", \"totalMinifiedBytes\": ").append(node.getTotalMinifiedBytes());
+		sb.append(", \"imports\": [");
+		String childIndent = indent + "  ";
+		for (int i = 0; i < node.imports.size(); i++) {
+			sb.append(i == 0 ? "\n" : ",\n").append(childIndent);
+			appendNode(sb, node.imports.get(i), childIndent);
+		}
+		sb.append(node.imports.isEmpty() ? "]}" : "\n" + indent + "]}");
+	}
+
+
+	static final class SharedFile {
+
+		final String path;
+
+		final long bytes;
+
+		final long minifiedBytes;
+
+		// module inputs, in the order modules were built
+		final List<String> importedBy = new ArrayList<String>();
+
+		// copies may differ a bit, urls are rewritten for every module
+		long totalMinifiedBytes;
+
+		SharedFile(final String path, final long bytes, final long minifiedBytes) {
+			this.path = path;
+			this.bytes = bytes;
+			this.minifiedBytes = minifiedBytes;
+		}
+
+		/**
+		 * @return  Minified bytes of all copies of the file but one.
+		 */
+		long getDuplicatedBytes() {
+			return totalMinifiedBytes - minifiedBytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.IOException;
+
+/**
+ * Where CssEngine reads stylesheets and their imports from. Paths are
+ * the ones in @import statements resolved against the catalog of the
+ * importing stylesheet, e.g. an asset pipeline can serve them from memory.
+ *
+ * Must be safe to call from several threads at once.
+ */
+public interface ImportResolver {
+
+	/**
+	 * @return  The same key for every path of a stylesheet,
+	 *          which is inlined only once per module under that key.
+	 */
+	String getCanonicalPath(String path) throws IOException;
+
+	/**
+	 * @param canonicalPath  A key returned by getCanonicalPath.
+	 * @return  Contents of a stylesheet.
+	 */
+	String read(String canonicalPath) throws IOException;
+
+}
@@ -19,10 +19,34 @@ public final class Main {
     Config config = builder.build();
     Date now = new Date();
     System.out.println("Building CSS from input directory " + builder.getFullInputPath() + " ...");
-    new CssCompressor(config).compress();
+    CssCompressor compressor = new CssCompressor(config);
+    if (config.getServePort() > 0) {
+      CssServer server = new CssServer(builder, config, compressor);
+      CssWatcher watcher = new CssWatcher(builder, config, compressor, server);
+      server.setWatcher(watcher);
+      server.start();
+      try {
+        watcher.watch();
+      } finally {
+        server.stop();
+      }
+      return;
+    }
+    if (config.isWatch()) {
+      new CssWatcher(builder, config, compressor, null).watch();
+      return;
+    }
+    compressor.compress();
     Date finish = new Date();
     long finishTime = finish.getTime() - now.getTime();
     System.out.println("Finished building CSS in " + finishTime + "ms");
+
+    if (config.getMetricsPath() != null) {
+      BuildMetrics metrics = compressor.getMetrics();
+      metrics.setBuildPhases(builder.getBuildPhases());
+      metrics.write(config.getMetricsPath());
+      System.out.println("Build metrics written to " + config.getMetricsPath());
+    }
   }
 
 }
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What compressing of one module produced besides its output file.
+ */
+final class ModuleResult {
+
+	final Config.Module module;
+
+	/**
+	 * Canonical paths of a module input and all its transitive imports
+	 * in the order they were inlined, followed by files inlined as data URIs.
+	 */
+	final List<String> dependencies;
+
+	/**
+	 * SHA-1 of dependencies as the module was built from them, for files
+	 * read from disk by an incremental build, so a file changed after
+	 * it was read can be told apart from one changed before.
+	 */
+	final Map<String, String> hashes;
+
+	/**
+	 * CPU time spent on a module in nanoseconds, -1 if it couldn't be measured.
+	 */
+	final long cpuTime;
+
+	final PhaseRecorder phases;
+
+	/**
+	 * Files the module inlined with their sizes, null unless an import report was asked for.
+	 */
+	final ImportNode importTree;
+
+	/**
+	 * Number of files inlined as data URIs, requests a page doesn't make.
+	 */
+	final int dataUris;
+
+	ModuleResult(final Config.Module module, final List<String> dependencies,
+			final Map<String, String> hashes, final long cpuTime, final PhaseRecorder phases, final ImportNode importTree,
+			final int dataUris) {
+
+		this.module = module;
+		this.dependencies = dependencies;
+		this.hashes = hashes;
+		this.cpuTime = cpuTime;
+		this.phases = phases;
+		this.importTree = importTree;
+		this.dataUris = dataUris;
+	}
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Minified and replaced modules on disk, keyed by a hash of the inlined
+ * stylesheet they were minified from, the output affecting options and
+ * the version of the compressor. Modules with the same sources build to
+ * the same entry whatever their paths are, so the directory can be a mount
+ * shared by build agents.
+ *
+ * Entries are written to a temporary file and renamed, so a concurrent
+ * reader sees either a whole entry or none. A hit touches the entry, and
+ * prune() deletes least recently used entries above the size limit.
+ * Unreadable entries count as misses, the cache is never required for
+ * a build to succeed.
+ *
+ * Layout: dir/ab/abcdef...css, entries are UTF-8 whatever the charset is.
+ */
+final class OutputCache {
+
+	// bumped when the same input and options start to minify differently
+	private static final String FORMAT = "1";
+
+	private static final String CHARSET = "UTF-8";
+
+	private static final String EXTENSION = ".css";
+
+	private static volatile String toolVersion;
+
+	private final File dir;
+
+	private final long maxSize;
+
+	private final String keyPrefix;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong pruned = new AtomicLong();
+
+
+	/**
+	 * @param maxSize      Bytes entries may take, 0 for no limit.
+	 * @param fingerprint  Hash of options affecting the output.
+	 */
+	OutputCache(final String dir, final long maxSize, final String fingerprint) {
+		this.dir = new File(dir);
+		this.maxSize = maxSize;
+		this.keyPrefix = FORMAT + '\n' + getToolVersion() + '\n' + fingerprint + '\n';
+	}
+
+	String getKey(final String css) {
+		return Utils.sha1Hex(keyPrefix + css);
+	}
+
+	/**
+	 * @return  Cached output for a key, null if there is none.
+	 */
+	String get(final String key) {
+		File entry = getEntry(key);
+		try {
+			String css = FileUtils.readFileToString(entry, CHARSET);
+			hits.incrementAndGet();
+			// the access time, mounts are often noatime
+			entry.setLastModified(System.currentTimeMillis());
+			return css;
+		} catch (IOException e) {
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	void put(final String key, final String css) {
+		File entry = getEntry(key);
+		File tmp = null;
+		try {
+			entry.getParentFile().mkdirs();
+			tmp = File.createTempFile(key, ".tmp", entry.getParentFile());
+			FileUtils.writeStringToFile(tmp, css, CHARSET);
+			try {
+				Files.move(tmp.toPath(), entry.toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to write output cache entry " + entry + ": " + e.getMessage());
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache fits its limit.
+	 */
+	void prune() {
+		if (maxSize <= 0) {
+			return;
+		}
+
+		List<File> entries = new ArrayList<File>();
+		long size = 0;
+		File[] buckets = dir.listFiles();
+		if (buckets == null) {
+			return;
+		}
+		for (File bucket : buckets) {
+			File[] files = bucket.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (file.getName().endsWith(EXTENSION)) {
+					entries.add(file);
+					size += file.length();
+				}
+			}
+		}
+		if (size <= maxSize) {
+			return;
+		}
+
+		final Map<File, Long> lastModified = new HashMap<File, Long>();
+		for (File entry : entries) {
+			lastModified.put(entry, entry.lastModified());
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Long.compare(lastModified.get(a), lastModified.get(b));
+			}
+		});
+
+		for (File entry : entries) {
+			if (size <= maxSize) {
+				break;
+			}
+			long length = entry.length();
+			// another agent may have pruned it already
+			if (entry.delete() || !entry.exists()) {
+				size -= length;
+				pruned.incrementAndGet();
+			}
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getPruned() {
+		return pruned.get();
+	}
+
+	private File getEntry(final String key) {
+		return new File(new File(dir, key.substring(0, 2)), key + EXTENSION);
+	}
+
+	/**
+	 * @return  Implementation version of the jar, failing that a hash of
+	 *          the jar, or of the class files when classes run from
+	 *          a directory (IDE, ant golden). null if neither can be read,
+	 *          then entries can't be told apart from those of other code.
+	 */
+	static String getToolVersion() {
+		if (toolVersion == null) {
+			String version = OutputCache.class.getPackage() == null ? null :
+					OutputCache.class.getPackage().getImplementationVersion();
+			if (version == null) {
+				CodeSource source = OutputCache.class.getProtectionDomain().getCodeSource();
+				try {
+					if (source != null && source.getLocation() != null) {
+						File location = new File(source.getLocation().toURI());
+						MessageDigest digest = MessageDigest.getInstance("SHA-1");
+						if (location.isFile()) {
+							digest.update(Files.readAllBytes(location.toPath()));
+							version = Utils.toHex(digest.digest());
+						} else if (location.isDirectory()) {
+							hashClasses(location, "", digest);
+							version = Utils.toHex(digest.digest());
+						}
+					}
+				} catch (URISyntaxException e) {
+					return null;
+				} catch (IOException e) {
+					return null;
+				} catch (NoSuchAlgorithmException e) {
+					throw new RuntimeException(e);
+				}
+				if (version == null) {
+					return null;
+				}
+			}
+			toolVersion = version;
+		}
+		return toolVersion;
+	}
+
+	/**
+	 * Feeds paths and contents of class files under a directory to a digest,
+	 * in the same order on every file system.
+	 */
+	private static void hashClasses(final File dir, final String prefix,
+			final MessageDigest digest) throws IOException {
+
+		String[] names = dir.list();
+		if (names == null) {
+			throw new IOException("Unable to list " + dir);
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (file.isDirectory()) {
+				hashClasses(file, prefix + name + '/', digest);
+			} else if (name.endsWith(".class")) {
+				digest.update((prefix + name + '\n').getBytes(CHARSET));
+				digest.update(Files.readAllBytes(file.toPath()));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event of one BuildPhase, so phases can be lined up
+ * with GC and other JVM events in a recording. Durations include nested
+ * phases, e.g. imports of a file include reading the files it imports.
+ *
+ * Only PhaseRecorder touches this class and only after checking
+ * jdk.jfr is there, events are simply not emitted on older JVMs.
+ */
+@Name("ru.artlebedev.csscompressor.Phase")
+@Label("CSS Build Phase")
+@Category("CSS Compressor")
+@Description("A step of building a CSS module")
+final class PhaseEvent extends jdk.jfr.Event {
+
+	@Label("Module")
+	String module;
+
+	@Label("Phase")
+	String phase;
+
+	@Label("In")
+	@Description("Bytes read for read, characters processed otherwise")
+	long in;
+
+	@Label("Out")
+	@Description("Bytes written for write, characters produced otherwise")
+	long out;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocated;
+
+
+	/**
+	 * @return  A started event, as Object for callers not to link against jdk.jfr.
+	 */
+	static Object start() {
+		PhaseEvent event = new PhaseEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	static void finish(final Object started, final String module, final BuildPhase phase,
+			final long in, final long out, final long allocated) {
+
+		PhaseEvent event = (PhaseEvent) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.module = module;
+			event.phase = phase.getReportName();
+			event.in = in;
+			event.out = out;
+			event.allocated = allocated;
+			event.commit();
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times, sizes and allocations of build phases of one module (or of the
+ * build itself, for the directory scan). Phases nest, e.g. imports of a
+ * file include reading of the files it imports, and every phase is
+ * accounted exclusively: time and allocations of nested phases are
+ * subtracted from the enclosing one, so the phases of a module add up.
+ *
+ * Allocations are bytes allocated by the recording thread, -1 on JVMs
+ * which can't tell them. Every phase is also emitted as a PhaseEvent
+ * when running on a JVM with Flight Recorder.
+ *
+ * Not thread safe, a recorder belongs to the thread building its module.
+ */
+final class PhaseRecorder {
+
+	private static final com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+
+	private static final boolean jfrAvailable = isJfrAvailable();
+
+	private static final int PHASES = BuildPhase.values().length;
+
+	private final String module;
+
+	private final long[] counts = new long[PHASES];
+
+	private final long[] times = new long[PHASES];
+
+	private final long[] ins = new long[PHASES];
+
+	private final long[] outs = new long[PHASES];
+
+	private final long[] allocations = new long[PHASES];
+
+	// phases begun and not ended yet, innermost last
+	private final List<Frame> frames = new ArrayList<Frame>();
+
+
+	/**
+	 * @param module  Input of the module, null for the build itself.
+	 */
+	PhaseRecorder(final String module) {
+		this.module = module;
+	}
+
+	void begin(final BuildPhase phase) {
+		Frame frame = new Frame(phase);
+		frame.event = jfrAvailable ? PhaseEvent.start() : null;
+		frame.allocationStart = getAllocatedBytes();
+		frame.start = System.nanoTime();
+		frames.add(frame);
+	}
+
+	/**
+	 * @param in   Bytes read for READ, characters a phase started with otherwise.
+	 * @param out  Bytes written for WRITE, characters a phase produced otherwise.
+	 */
+	void end(final BuildPhase phase, final long in, final long out) {
+		long time = System.nanoTime();
+		long allocated = getAllocatedBytes();
+
+		Frame frame = frames.remove(frames.size() - 1);
+		if (frame.phase != phase) {
+			throw new IllegalStateException(
+					"Phase " + phase + " ended while " + frame.phase + " was running");
+		}
+
+		time -= frame.start;
+		allocated = allocated < 0 ? -1 : allocated - frame.allocationStart;
+		if (!frames.isEmpty()) {
+			Frame parent = frames.get(frames.size() - 1);
+			parent.nestedTime += time;
+			parent.nestedAllocations += allocated;
+		}
+
+		int i = phase.ordinal();
+		counts[i]++;
+		times[i] += time - frame.nestedTime;
+		ins[i] += in;
+		outs[i] += out;
+		allocations[i] = allocated < 0 ? -1 : allocations[i] + allocated - frame.nestedAllocations;
+
+		if (frame.event != null) {
+			PhaseEvent.finish(frame.event, module, phase, in, out, allocated);
+		}
+	}
+
+	String getModule() {
+		return module;
+	}
+
+	/**
+	 * @return  How many times a phase ran, 0 if it didn't.
+	 */
+	long getCount(final BuildPhase phase) {
+		return counts[phase.ordinal()];
+	}
+
+	/**
+	 * @return  Nanoseconds spent in a phase, excluding nested phases.
+	 */
+	long getTime(final BuildPhase phase) {
+		return times[phase.ordinal()];
+	}
+
+	long getIn(final BuildPhase phase) {
+		return ins[phase.ordinal()];
+	}
+
+	long getOut(final BuildPhase phase) {
+		return outs[phase.ordinal()];
+	}
+
+	/**
+	 * @return  Bytes allocated in a phase excluding nested phases, -1 if unknown.
+	 */
+	long getAllocated(final BuildPhase phase) {
+		return allocations[phase.ordinal()];
+	}
+
+	private static long getAllocatedBytes() {
+		if (allocationBean == null) {
+			return -1;
+		}
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean getAllocationBean() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean allocationBean =
+				(com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported() ||
+				!allocationBean.isThreadAllocatedMemoryEnabled()) {
+			return null;
+		}
+		return allocationBean;
+	}
+
+	private static boolean isJfrAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+
+	private static final class Frame {
+
+		final BuildPhase phase;
+
+		long start;
+
+		long allocationStart;
+
+		long nestedTime;
+
+		long nestedAllocations;
+
+		Object event;
+
+		Frame(final BuildPhase phase) {
+			this.phase = phase;
+		}
+
+	}
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Compressed copies of an output written next to it, so a web server or
+ * CDN can serve them to clients accepting the encoding without compressing
+ * on the fly.
+ */
+enum Precompression {
+
+	/** Content-Encoding: gzip, page.css.gz */
+	GZIP("gzip", ".gz", BuildPhase.GZIP) {
+		@Override
+		OutputStream open(final OutputStream out, final int level) throws IOException {
+			return new GZIPOutputStream(out) {
+				{
+					// GZIPOutputStream doesn't take a level, its deflater is protected
+					def.setLevel(level);
+				}
+			};
+		}
+	},
+
+	/** Content-Encoding: deflate (zlib wrapped), page.css.deflate */
+	DEFLATE("deflate", ".deflate", BuildPhase.DEFLATE) {
+		@Override
+		OutputStream open(final OutputStream out, final int level) {
+			return new DeflaterOutputStream(out, new Deflater(level)) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					// a deflater passed in isn't ended by close()
+					def.end();
+				}
+			};
+		}
+	};
+
+
+	private final String name;
+
+	private final String extension;
+
+	private final BuildPhase phase;
+
+	Precompression(final String name, final String extension, final BuildPhase phase) {
+		this.name = name;
+		this.extension = extension;
+		this.phase = phase;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getExtension() {
+		return extension;
+	}
+
+	BuildPhase getPhase() {
+		return phase;
+	}
+
+	static Precompression forName(final String name) {
+		for (Precompression precompression : values()) {
+			if (precompression.name.equals(name)) {
+				return precompression;
+			}
+		}
+		return null;
+	}
+
+	abstract OutputStream open(OutputStream out, int level) throws IOException;
+
+	/**
+	 * Compresses an encoded output and writes it next to the output.
+	 *
+	 * @param level  From Deflater.NO_COMPRESSION to Deflater.BEST_COMPRESSION.
+	 * @return       Size of the compressed copy.
+	 */
+	long write(final String outputPath, final byte[] content, final int level) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 4 + 64);
+		OutputStream out = open(buffer, level);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		FileUtils.writeByteArrayToFile(new File(outputPath + extension), buffer.toByteArray());
+		return buffer.size();
+	}
+
+}
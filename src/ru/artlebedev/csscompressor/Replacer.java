@@ -0,0 +1,576 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies all replaces to a stylesheet in a single left to right pass,
+ * instead of a replaceAll (and a copy of the stylesheet) per replace.
+ *
+ * Searches without regex syntax are found with an Aho-Corasick automaton,
+ * the other ones are merged into one alternation. Searches that can't be
+ * merged (back references and named groups would be renumbered) are
+ * matched on their own, still within the same pass.
+ *
+ * Precedence: the match starting first wins, of the matches starting at
+ * the same position the one of the replace listed first does. Replaced
+ * text is not searched again, so a replace never sees the output of
+ * another one. Replacements use the syntax of Matcher.appendReplacement.
+ *
+ * Safe to share between threads, hits are counted atomically.
+ */
+final class Replacer {
+
+	private static final String REGEX_SYNTAX = ".$|()[]{}^?*+\\";
+
+	private final List<Config.Replace> replaces;
+
+	private final AtomicLongArray hits;
+
+	// null if there are no literal searches
+	private final LiteralSearch literals;
+
+	// merged alternation of regex searches, null if there are none
+	private final Pattern merged;
+
+	// replace index and group of the alternative of every merged search
+	private final int[] mergedReplaces;
+
+	private final int[] mergedGroups;
+
+	private final Template[] mergedTemplates;
+
+	// searches matched on their own
+	private final int[] separateReplaces;
+
+	private final Template[] separateTemplates;
+
+
+	Replacer(final List<Config.Replace> replaces) {
+		this.replaces = replaces;
+		this.hits = new AtomicLongArray(replaces.size());
+
+		List<String> literalSearches = new ArrayList<String>();
+		List<String> literalReplacements = new ArrayList<String>();
+		List<Integer> literalReplaces = new ArrayList<Integer>();
+		List<Integer> mergeable = new ArrayList<Integer>();
+		List<Integer> separate = new ArrayList<Integer>();
+
+		for (int i = 0; i < replaces.size(); i++) {
+			Config.Replace replace = replaces.get(i);
+			String literal = toLiteral(replace.search);
+			if (literal != null && replace.replacement.indexOf('$') < 0 &&
+					replace.replacement.indexOf('\\') < 0) {
+				literalSearches.add(literal);
+				literalReplacements.add(replace.replacement);
+				literalReplaces.add(i);
+			} else if (isMergeable(replace.search)) {
+				mergeable.add(i);
+			} else {
+				separate.add(i);
+			}
+		}
+
+		literals = literalSearches.isEmpty() ? null :
+				new LiteralSearch(literalSearches, literalReplacements, toArray(literalReplaces));
+
+		if (mergeable.isEmpty()) {
+			merged = null;
+			mergedReplaces = new int[0];
+			mergedGroups = new int[0];
+			mergedTemplates = new Template[0];
+		} else {
+			mergedReplaces = toArray(mergeable);
+			mergedGroups = new int[mergedReplaces.length];
+			mergedTemplates = new Template[mergedReplaces.length];
+			StringBuilder alternation = new StringBuilder();
+			int group = 1;
+			for (int k = 0; k < mergedReplaces.length; k++) {
+				Config.Replace replace = replaces.get(mergedReplaces[k]);
+				int groupCount = replace.pattern.matcher("").groupCount();
+				alternation.append(k == 0 ? "(" : "|(").append(replace.search).append(')');
+				mergedGroups[k] = group;
+				mergedTemplates[k] = new Template(replace.replacement, group, groupCount);
+				group += groupCount + 1;
+			}
+			merged = Pattern.compile(alternation.toString());
+		}
+
+		separateReplaces = toArray(separate);
+		separateTemplates = new Template[separateReplaces.length];
+		for (int k = 0; k < separateReplaces.length; k++) {
+			Config.Replace replace = replaces.get(separateReplaces[k]);
+			separateTemplates[k] = new Template(replace.replacement, 0,
+					replace.pattern.matcher("").groupCount());
+		}
+	}
+
+	List<Config.Replace> getReplaces() {
+		return replaces;
+	}
+
+	/**
+	 * @return  How many times the replace at index replaced something.
+	 */
+	long getHits(final int index) {
+		return hits.get(index);
+	}
+
+	String apply(final String css) {
+		if (replaces.isEmpty()) {
+			return css;
+		}
+
+		List<Source> sources = new ArrayList<Source>();
+		if (literals != null) {
+			sources.add(new LiteralSource(css));
+		}
+		if (merged != null) {
+			sources.add(new MergedSource(merged.matcher(css)));
+		}
+		for (int k = 0; k < separateReplaces.length; k++) {
+			sources.add(new SeparateSource(
+					replaces.get(separateReplaces[k]).pattern.matcher(css), k));
+		}
+
+		StringBuilder sb = null;
+		int appendIndex = 0;
+		int pos = 0;
+		int length = css.length();
+		while (pos <= length) {
+			Source best = null;
+			for (Source source : sources) {
+				if (source.start < pos) {
+					source.find(pos);
+				}
+				if (source.start > length) {
+					continue;
+				}
+				if (best == null || source.start < best.start ||
+						source.start == best.start && source.replace < best.replace) {
+					best = source;
+				}
+			}
+			if (best == null) {
+				break;
+			}
+
+			if (sb == null) {
+				sb = new StringBuilder(length + 16);
+			}
+			sb.append(css, appendIndex, best.start);
+			best.appendReplacement(sb);
+			hits.incrementAndGet(best.replace);
+
+			if (best.end == best.start) {
+				// an empty match, the next one may start a character later
+				if (best.start < length) {
+					sb.append(css.charAt(best.start));
+				}
+				pos = best.start + 1;
+			} else {
+				pos = best.end;
+			}
+			appendIndex = Math.min(pos, length);
+		}
+
+		if (sb == null) {
+			return css;
+		}
+		sb.append(css, appendIndex, length);
+		return sb.toString();
+	}
+
+	/**
+	 * @return  Text a search matches if it has no regex syntax
+	 *          but escaped punctuation, null otherwise.
+	 */
+	static String toLiteral(final String search) {
+		StringBuilder literal = new StringBuilder(search.length());
+		for (int i = 0; i < search.length(); i++) {
+			char c = search.charAt(i);
+			if (c == '\\') {
+				if (i + 1 == search.length()) {
+					return null;
+				}
+				char escaped = search.charAt(++i);
+				if (Character.isLetterOrDigit(escaped) || escaped >= 0x80) {
+					// \d, \Q, \1 and the like
+					return null;
+				}
+				literal.append(escaped);
+			} else if (REGEX_SYNTAX.indexOf(c) >= 0) {
+				return null;
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.length() == 0 ? null : literal.toString();
+	}
+
+	/**
+	 * @return  Whether a search keeps its meaning inside an alternation
+	 *          with its groups renumbered.
+	 */
+	private static boolean isMergeable(final String search) {
+		for (int i = 0; i < search.length() - 1; i++) {
+			char c = search.charAt(i);
+			if (c == '\\') {
+				char escaped = search.charAt(i + 1);
+				if (escaped >= '1' && escaped <= '9' || escaped == 'k') {
+					return false;
+				}
+				i++;
+			} else if (c == '(' && search.startsWith("(?<", i) &&
+					!search.startsWith("(?<=", i) && !search.startsWith("(?<!", i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int[] toArray(final List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+
+	/**
+	 * The next match of some searches at or after a position.
+	 */
+	private abstract static class Source {
+
+		// start > length of the text when there are no more matches
+		int start = -1;
+
+		int end;
+
+		int replace;
+
+		abstract void find(int from);
+
+		abstract void appendReplacement(StringBuilder sb);
+
+	}
+
+	private final class LiteralSource extends Source {
+
+		private final String css;
+
+		private int literal;
+
+		LiteralSource(final String css) {
+			this.css = css;
+		}
+
+		@Override
+		void find(final int from) {
+			long match = literals.find(css, from);
+			if (match < 0) {
+				start = Integer.MAX_VALUE;
+				return;
+			}
+			start = (int) (match >>> 32);
+			literal = (int) match;
+			end = start + literals.searches[literal].length();
+			replace = literals.replaces[literal];
+		}
+
+		@Override
+		void appendReplacement(final StringBuilder sb) {
+			sb.append(literals.replacements[literal]);
+		}
+
+	}
+
+	private final class MergedSource extends Source {
+
+		private final Matcher matcher;
+
+		private int alternative;
+
+		MergedSource(final Matcher matcher) {
+			this.matcher = matcher;
+		}
+
+		@Override
+		void find(final int from) {
+			if (from > matcher.regionEnd() || !matcher.find(from)) {
+				start = Integer.MAX_VALUE;
+				return;
+			}
+			start = matcher.start();
+			end = matcher.end();
+			alternative = 0;
+			while (matcher.start(mergedGroups[alternative]) < 0) {
+				alternative++;
+			}
+			replace = mergedReplaces[alternative];
+		}
+
+		@Override
+		void appendReplacement(final StringBuilder sb) {
+			mergedTemplates[alternative].append(sb, matcher);
+		}
+
+	}
+
+	private final class SeparateSource extends Source {
+
+		private final Matcher matcher;
+
+		private final int index;
+
+		SeparateSource(final Matcher matcher, final int index) {
+			this.matcher = matcher;
+			this.index = index;
+			this.replace = separateReplaces[index];
+		}
+
+		@Override
+		void find(final int from) {
+			if (from > matcher.regionEnd() || !matcher.find(from)) {
+				start = Integer.MAX_VALUE;
+				return;
+			}
+			start = matcher.start();
+			end = matcher.end();
+		}
+
+		@Override
+		void appendReplacement(final StringBuilder sb) {
+			separateTemplates[index].append(sb, matcher);
+		}
+
+	}
+
+
+	/**
+	 * A replacement parsed once: literal text, \x escapes, $n and ${name}
+	 * group references, with group numbers shifted by an offset.
+	 */
+	private static final class Template {
+
+		// literal text (String) or a group number (Integer) or a group name (char[])
+		private final Object[] parts;
+
+		Template(final String replacement, final int offset, final int groupCount) {
+			List<Object> parts = new ArrayList<Object>();
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < replacement.length(); i++) {
+				char c = replacement.charAt(i);
+				if (c == '\\') {
+					if (++i == replacement.length()) {
+						throw new IllegalArgumentException(
+								"Replacement '" + replacement + "' ends with an escape character");
+					}
+					text.append(replacement.charAt(i));
+				} else if (c == '$') {
+					if (++i == replacement.length()) {
+						throw new IllegalArgumentException(
+								"Replacement '" + replacement + "' ends with a group reference");
+					}
+					Object group;
+					if (replacement.charAt(i) == '{') {
+						int close = replacement.indexOf('}', i);
+						if (close < 0) {
+							throw new IllegalArgumentException(
+									"Replacement '" + replacement + "' has an unclosed group name");
+						}
+						group = replacement.substring(i + 1, close).toCharArray();
+						i = close;
+					} else {
+						// like Matcher: as many digits as still make an existing group
+						int number = replacement.charAt(i) - '0';
+						if (number < 0 || number > 9) {
+							throw new IllegalArgumentException(
+									"Replacement '" + replacement + "' has an illegal group reference");
+						}
+						if (number > groupCount) {
+							throw new IllegalArgumentException(
+									"Replacement '" + replacement + "' refers to a missing group " + number);
+						}
+						while (i + 1 < replacement.length()) {
+							int digit = replacement.charAt(i + 1) - '0';
+							if (digit < 0 || digit > 9 || number * 10 + digit > groupCount) {
+								break;
+							}
+							number = number * 10 + digit;
+							i++;
+						}
+						group = offset + number;
+					}
+					if (text.length() > 0) {
+						parts.add(text.toString());
+						text.setLength(0);
+					}
+					parts.add(group);
+				} else {
+					text.append(c);
+				}
+			}
+			if (text.length() > 0) {
+				parts.add(text.toString());
+			}
+			this.parts = parts.toArray();
+		}
+
+		void append(final StringBuilder sb, final Matcher matcher) {
+			for (Object part : parts) {
+				String value;
+				if (part instanceof String) {
+					value = (String) part;
+				} else if (part instanceof Integer) {
+					value = matcher.group((Integer) part);
+				} else {
+					value = matcher.group(new String((char[]) part));
+				}
+				if (value != null) {
+					sb.append(value);
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * Aho-Corasick automaton over literal searches, as a full transition
+	 * table over the characters the searches consist of.
+	 */
+	private static final class LiteralSearch {
+
+		final String[] searches;
+
+		final String[] replacements;
+
+		// replace index of every search
+		final int[] replaces;
+
+		private final Map<Character, Integer> alphabet = new HashMap<Character, Integer>();
+
+		// state -> character index (0 for characters of no search) -> state
+		private final int[][] transitions;
+
+		// state -> searches ending in it, including through failure links
+		private final int[][] outputs;
+
+		private final int maxLength;
+
+		LiteralSearch(final List<String> searches, final List<String> replacements,
+				final int[] replaces) {
+
+			this.searches = searches.toArray(new String[searches.size()]);
+			this.replacements = replacements.toArray(new String[replacements.size()]);
+			this.replaces = replaces;
+
+			int states = 1;
+			int maxLength = 0;
+			for (String search : searches) {
+				states += search.length();
+				maxLength = Math.max(maxLength, search.length());
+				for (int i = 0; i < search.length(); i++) {
+					if (!alphabet.containsKey(search.charAt(i))) {
+						alphabet.put(search.charAt(i), alphabet.size() + 1);
+					}
+				}
+			}
+			this.maxLength = maxLength;
+
+			// trie
+			int[][] trie = new int[states][alphabet.size() + 1];
+			List<List<Integer>> ends = new ArrayList<List<Integer>>();
+			ends.add(new ArrayList<Integer>());
+			int used = 1;
+			for (int s = 0; s < this.searches.length; s++) {
+				int state = 0;
+				for (int i = 0; i < this.searches[s].length(); i++) {
+					int c = alphabet.get(this.searches[s].charAt(i));
+					if (trie[state][c] == 0) {
+						trie[state][c] = used++;
+						ends.add(new ArrayList<Integer>());
+					}
+					state = trie[state][c];
+				}
+				ends.get(state).add(s);
+			}
+
+			// failure links breadth first, turning the trie into a full automaton
+			int[] fail = new int[used];
+			LinkedList<Integer> queue = new LinkedList<Integer>();
+			for (int c = 0; c <= alphabet.size(); c++) {
+				if (trie[0][c] != 0) {
+					queue.add(trie[0][c]);
+				}
+			}
+			while (!queue.isEmpty()) {
+				int state = queue.removeFirst();
+				ends.get(state).addAll(ends.get(fail[state]));
+				for (int c = 0; c <= alphabet.size(); c++) {
+					int next = trie[state][c];
+					if (next != 0) {
+						fail[next] = trie[fail[state]][c];
+						queue.add(next);
+					} else {
+						trie[state][c] = trie[fail[state]][c];
+					}
+				}
+			}
+
+			transitions = Arrays.copyOf(trie, used);
+			outputs = new int[used][];
+			for (int state = 0; state < used; state++) {
+				outputs[state] = toArray(ends.get(state));
+			}
+		}
+
+		/**
+		 * @return  Start of the leftmost match at or after from in the high
+		 *          32 bits and its search in the low ones, of the searches
+		 *          starting there the one of the first replace;
+		 *          -1 if there is none.
+		 */
+		long find(final String css, final int from) {
+			int state = 0;
+			int bestStart = Integer.MAX_VALUE;
+			int best = -1;
+			for (int i = from; i < css.length(); i++) {
+				if (i - maxLength >= bestStart) {
+					// a match ending here or later starts after the best one
+					break;
+				}
+				Integer c = alphabet.get(css.charAt(i));
+				state = transitions[state][c == null ? 0 : c];
+				for (int search : outputs[state]) {
+					int start = i - searches[search].length() + 1;
+					if (start < bestStart ||
+							start == bestStart && replaces[search] < replaces[best]) {
+						bestStart = start;
+						best = search;
+					}
+				}
+			}
+			return best < 0 ? -1 : (long) bestStart << 32 | best;
+		}
+
+	}
+
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which imports of modules are moved into shared chunks, files a page loads
+ * before a module so every page bundle doesn't carry its own copy of them.
+ *
+ * Urls of imported files are rewritten relative to the module importing
+ * them, so chunks are shared by modules of one directory only. A chunk is
+ * a file imported by at least minModules modules of a directory, inlined
+ * with its own imports. To keep the cascade, a module only gives up
+ * a prefix of its imports preceding any of its rules, and only chunks
+ * inlining files none of the previous chunks did, so loading the chunks
+ * and then the rest of the module applies the same rules in the same order
+ * as the whole module did.
+ *
+ * The manifest tells a page which files to load for a module, in order:
+ *   {"modules": {"layers/page.css": ["layers/chunk-reset-1a2b3c4d.css", "layers/page.css"]},
+ *    "chunks": {"layers/chunk-reset-1a2b3c4d.css": {"source": "...", "modules": 12}}}
+ * Paths are relative to the directory of the manifest.
+ */
+final class SharedChunks {
+
+	static final String MANIFEST_NAME = "chunks.json";
+
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+	// module input -> chunks loaded before it, in order
+	private final Map<String, List<Chunk>> moduleChunks = new HashMap<String, List<Chunk>>();
+
+
+	private SharedChunks() {
+	}
+
+	/**
+	 * Finds the chunks, reading the modules and files they import.
+	 */
+	static SharedChunks plan(final CssEngine engine, final List<Config.Module> modules,
+			final int minModules) throws IOException {
+
+		SharedChunks sharedChunks = new SharedChunks();
+
+		Map<String, List<Config.Module>> directories = new LinkedHashMap<String, List<Config.Module>>();
+		for (Config.Module module : modules) {
+			String directory = Paths.get(module.input).getParent().normalize().toString();
+			List<Config.Module> directoryModules = directories.get(directory);
+			if (directoryModules == null) {
+				directoryModules = new ArrayList<Config.Module>();
+				directories.put(directory, directoryModules);
+			}
+			directoryModules.add(module);
+		}
+
+		for (List<Config.Module> directoryModules : directories.values()) {
+			if (directoryModules.size() >= minModules) {
+				sharedChunks.planDirectory(engine, directoryModules, minModules);
+			}
+		}
+		return sharedChunks;
+	}
+
+	private void planDirectory(final CssEngine engine, final List<Config.Module> modules,
+			final int minModules) throws IOException {
+
+		Path directory = Paths.get(modules.get(0).input).getParent();
+		String outputDirectory = new File(modules.get(0).outputPath).getParent();
+
+		// leading imports of every module by canonical path, and the paths to read them by
+		Map<Config.Module, List<String>> leadingImports = new HashMap<Config.Module, List<String>>();
+		Map<String, String> paths = new HashMap<String, String>();
+		Map<String, Integer> importedBy = new HashMap<String, Integer>();
+		for (Config.Module module : modules) {
+			List<String> imports = new ArrayList<String>();
+			for (String path : engine.getLeadingImports(module.input)) {
+				String canonicalPath = engine.getCanonicalPath(path);
+				if (!imports.contains(canonicalPath)) {
+					imports.add(canonicalPath);
+					paths.put(canonicalPath, path);
+					Integer count = importedBy.get(canonicalPath);
+					importedBy.put(canonicalPath, count == null ? 1 : count + 1);
+				}
+			}
+			leadingImports.put(module, imports);
+		}
+
+		Set<String> candidates = new HashSet<String>();
+		for (Map.Entry<String, Integer> entry : importedBy.entrySet()) {
+			if (entry.getValue() >= minModules) {
+				candidates.add(entry.getKey());
+			}
+		}
+
+		// files each candidate inlines, computed once per directory
+		Map<String, Set<String>> inlinedFiles = new HashMap<String, Set<String>>();
+
+		// modules stopping early make chunks used less, so repeat until no chunk drops out
+		Map<Config.Module, List<String>> prefixes;
+		while (true) {
+			prefixes = new HashMap<Config.Module, List<String>>();
+			Map<String, Integer> usedBy = new HashMap<String, Integer>();
+			for (Config.Module module : modules) {
+				String input = engine.getCanonicalPath(module.input);
+				List<String> prefix = new ArrayList<String>();
+				Set<String> inlined = new HashSet<String>();
+				for (String candidate : leadingImports.get(module)) {
+					if (!candidates.contains(candidate)) {
+						break;
+					}
+					Set<String> files = inlinedFiles.get(candidate);
+					if (files == null) {
+						files = new LinkedHashSet<String>();
+						engine.processCssFile(directory, paths.get(candidate), files, false,
+								new PhaseRecorder(null));
+						inlinedFiles.put(candidate, files);
+					}
+					if (files.contains(input) || !Collections.disjoint(files, inlined)) {
+						break;
+					}
+					inlined.addAll(files);
+					prefix.add(candidate);
+					Integer count = usedBy.get(candidate);
+					usedBy.put(candidate, count == null ? 1 : count + 1);
+				}
+				prefixes.put(module, prefix);
+			}
+
+			Set<String> used = new HashSet<String>();
+			for (Map.Entry<String, Integer> entry : usedBy.entrySet()) {
+				if (entry.getValue() >= minModules) {
+					used.add(entry.getKey());
+				}
+			}
+			if (used.equals(candidates)) {
+				break;
+			}
+			candidates = used;
+		}
+
+		Map<String, Chunk> directoryChunks = new HashMap<String, Chunk>();
+		for (Config.Module module : modules) {
+			List<String> prefix = prefixes.get(module);
+			if (prefix.isEmpty()) {
+				continue;
+			}
+			List<Chunk> loaded = new ArrayList<Chunk>();
+			for (String source : prefix) {
+				Chunk chunk = directoryChunks.get(source);
+				if (chunk == null) {
+					String name = new File(source).getName();
+					name = name.substring(0, name.length() - ".css".length());
+					chunk = new Chunk(directory, paths.get(source), source,
+							new File(outputDirectory, "chunk-" + name + "-" +
+									Utils.sha1Hex(source).substring(0, 8) + ".css").getPath(),
+							inlinedFiles.get(source));
+					directoryChunks.put(source, chunk);
+					chunks.add(chunk);
+				}
+				chunk.modules.add(module.input);
+				loaded.add(chunk);
+			}
+			moduleChunks.put(module.input, loaded);
+		}
+	}
+
+	List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return  Chunks loaded before a module, in order.
+	 */
+	List<Chunk> getChunks(final Config.Module module) {
+		List<Chunk> loaded = moduleChunks.get(module.input);
+		return loaded == null ? Collections.<Chunk>emptyList() : loaded;
+	}
+
+	/**
+	 * @return  Canonical paths of files a module doesn't inline
+	 *          because its chunks do.
+	 */
+	Set<String> getExcludedFiles(final Config.Module module) {
+		Set<String> excluded = new LinkedHashSet<String>();
+		for (Chunk chunk : getChunks(module)) {
+			excluded.addAll(chunk.files);
+		}
+		return excluded;
+	}
+
+	/**
+	 * @return  Hash of the chunks and modules using them, outputs of
+	 *          modules built with another layout can't be reused.
+	 */
+	String getFingerprint() {
+		StringBuilder sb = new StringBuilder();
+		for (Chunk chunk : chunks) {
+			sb.append(chunk.source).append('\n');
+			for (String module : chunk.modules) {
+				sb.append('\t').append(module).append('\n');
+			}
+		}
+		return Utils.sha1Hex(sb.toString());
+	}
+
+	void writeManifest(final String path, final List<Config.Module> modules) throws IOException {
+		Path directory = Paths.get(path).toAbsolutePath().getParent();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"modules\": {");
+		boolean first = true;
+		for (Config.Module module : modules) {
+			sb.append(first ? "\n    " : ",\n    ");
+			first = false;
+			Utils.appendJsonString(sb, relativize(directory, module.outputPath));
+			sb.append(": [");
+			for (Chunk chunk : getChunks(module)) {
+				Utils.appendJsonString(sb, relativize(directory, chunk.outputPath));
+				sb.append(", ");
+			}
+			Utils.appendJsonString(sb, relativize(directory, module.outputPath));
+			sb.append(']');
+		}
+		sb.append("\n  },\n  \"chunks\": {");
+		first = true;
+		for (Chunk chunk : chunks) {
+			sb.append(first ? "\n    " : ",\n    ");
+			first = false;
+			Utils.appendJsonString(sb, relativize(directory, chunk.outputPath));
+			sb.append(": {\"source\": ");
+			Utils.appendJsonString(sb, chunk.source);
+			sb.append(", \"modules\": ").append(chunk.modules.size()).append('}');
+		}
+		sb.append("\n  }\n}\n");
+
+		Utils.writeToFile(path, sb.toString(), "UTF-8");
+	}
+
+	private static String relativize(final Path directory, final String path) {
+		return directory.relativize(Paths.get(path).toAbsolutePath()).toString().replace('\\', '/');
+	}
+
+
+	static final class Chunk {
+
+		// directory of the modules, urls of the chunk are relative to it
+		final Path directory;
+
+		final String path;
+
+		final String source;
+
+		final String outputPath;
+
+		// canonical paths of files inlined into the chunk
+		final Set<String> files;
+
+		final List<String> modules = new ArrayList<String>();
+
+		Chunk(final Path directory, final String path, final String source,
+				final String outputPath, final Set<String> files) {
+			this.directory = directory;
+			this.path = path;
+			this.source = source;
+			this.outputPath = outputPath;
+			this.files = files;
+		}
+
+	}
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2015 American Well Systems
+ * All rights reserved.
+ *
+ * It is illegal to use, reproduce or distribute
+ * any part of this Intellectual Property without
+ * prior written authorization from American Well.
+ */
+package ru.artlebedev.csscompressor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Optimizations the YUI compressor can't make working on characters,
+ * made on a CssTree of its output:
+ *
+ *   a{color:red;color:blue}  ->  a{color:blue}     shadowed declarations
+ *   a{color:red}a{margin:0}  ->  a{color:red;margin:0}   adjacent equal selectors
+ *   a{color:red}b{color:red} ->  a,b{color:red}    adjacent equal blocks
+ *
+ * Only adjacent rules are merged, so no rule moves past another one and
+ * the cascade stays the same. A declaration is dropped only when the one
+ * overriding it consists of CSS 2.1 keywords, lengths and colors every
+ * browser understands; anything newer may follow an older value as
+ * a fallback for browsers ignoring it, like display:block;display:grid
+ * or width:90%;width:calc(100% - 2em). Rules are merged by blocks only
+ * when every selector is understood by all browsers too, since a browser
+ * drops a whole rule with a selector it doesn't know.
+ *
+ * Safe to share between threads.
+ */
+final class StructureOptimizer {
+
+	private static final Pattern VALUE_SEPARATOR = Pattern.compile("[ ,/]+");
+
+	// numbers with CSS 2.1 units, hex colors and strings
+	private static final Pattern UNIVERSAL_TOKEN = Pattern.compile(
+			"[+-]?(?:[0-9]+|[0-9]*\\.[0-9]+)(?:px|em|ex|%|pt|pc|in|cm|mm|deg|s|ms)?|" +
+			"#(?:[0-9a-fA-F]{3}|[0-9a-fA-F]{6})|\"[^\"\\\\]*\"|'[^'\\\\]*'");
+
+	private static final Set<String> UNIVERSAL_KEYWORDS = new HashSet<String>(Arrays.asList(
+			"none", "auto", "inherit", "normal", "hidden", "visible", "scroll",
+			"block", "inline", "inline-block", "list-item", "table", "table-cell", "table-row",
+			"static", "relative", "absolute", "fixed", "left", "right", "center", "top", "bottom",
+			"middle", "baseline", "both", "bold", "bolder", "lighter", "italic", "oblique",
+			"underline", "overline", "line-through", "uppercase", "lowercase", "capitalize",
+			"nowrap", "pre", "solid", "dashed", "dotted", "double", "groove", "ridge", "inset",
+			"outset", "repeat", "no-repeat", "repeat-x", "repeat-y", "collapse", "separate",
+			"pointer", "default", "move", "text", "wait", "help", "crosshair", "transparent",
+			"disc", "circle", "square", "decimal", "outside", "inside", "ltr", "rtl",
+			"serif", "sans-serif", "monospace", "thin", "medium", "thick", "small", "large",
+			"black", "silver", "gray", "white", "maroon", "red", "purple", "fuchsia", "green",
+			"lime", "olive", "yellow", "navy", "blue", "teal", "aqua", "orange"));
+
+	// pseudo classes and elements of CSS 2.1
+	private static final Set<String> UNIVERSAL_PSEUDOS = new HashSet<String>(Arrays.asList(
+			"link", "visited", "hover", "active", "focus", "first-child",
+			"first-line", "first-letter", "before", "after"));
+
+	private final AtomicLong declarationsRemoved = new AtomicLong();
+
+	private final AtomicLong rulesMerged = new AtomicLong();
+
+
+	String optimize(final String css) {
+		List<CssTree.Node> nodes = CssTree.parse(css);
+		optimize(nodes);
+		return CssTree.toString(nodes);
+	}
+
+	long getDeclarationsRemoved() {
+		return declarationsRemoved.get();
+	}
+
+	long getRulesMerged() {
+		return rulesMerged.get();
+	}
+
+	private void optimize(final List<CssTree.Node> nodes) {
+		for (CssTree.Node node : nodes) {
+			if (node instanceof CssTree.Block) {
+				optimize(((CssTree.Block) node).children);
+			} else if (node instanceof CssTree.Rule) {
+				removeShadowed((CssTree.Rule) node);
+			}
+		}
+
+		// equal selectors first, their merged blocks may then equal others;
+		// nodes are copied rather than removed to stay linear on large bundles
+		List<CssTree.Node> merged = new ArrayList<CssTree.Node>(nodes.size());
+		CssTree.Rule previous = null;
+		for (CssTree.Node node : nodes) {
+			CssTree.Rule rule = asRule(node);
+			if (rule != null && previous != null && previous.selector.equals(rule.selector)) {
+				previous.declarations.addAll(rule.declarations);
+				removeShadowed(previous);
+				rulesMerged.incrementAndGet();
+			} else {
+				merged.add(node);
+				previous = rule;
+			}
+		}
+
+		nodes.clear();
+		previous = null;
+		// block and selector safety of the previous rule
+		String block = null;
+		boolean safe = false;
+		for (CssTree.Node node : merged) {
+			CssTree.Rule rule = asRule(node);
+			if (rule == null) {
+				nodes.add(node);
+				previous = null;
+				continue;
+			}
+			String ruleBlock = getBlock(rule);
+			boolean ruleSafe = isSafe(rule.selector);
+			if (previous != null && safe && ruleSafe && block.equals(ruleBlock)) {
+				previous.selector = previous.selector + "," + rule.selector;
+				rulesMerged.incrementAndGet();
+			} else {
+				nodes.add(node);
+				previous = rule;
+				block = ruleBlock;
+				safe = ruleSafe;
+			}
+		}
+	}
+
+	/**
+	 * Removes declarations a later one of the same property overrides.
+	 */
+	private void removeShadowed(final CssTree.Rule rule) {
+		List<CssTree.Declaration> declarations = rule.declarations;
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		for (int i = 0; i < declarations.size(); i++) {
+			CssTree.Declaration declaration = declarations.get(i);
+			Integer previousIndex = last.get(declaration.property);
+			if (previousIndex == null) {
+				last.put(declaration.property, i);
+				continue;
+			}
+
+			CssTree.Declaration previous = declarations.get(previousIndex);
+			if (previous.important && !declaration.important) {
+				// !important wins whatever comes after it
+				if (isUniversal(previous.value)) {
+					declarations.remove(i);
+					declarationsRemoved.incrementAndGet();
+					i--;
+				} else {
+					last.put(declaration.property, i);
+				}
+			} else if (!isUniversal(declaration.value)) {
+				last.put(declaration.property, i);
+			} else {
+				declarations.remove((int) previousIndex);
+				declarationsRemoved.incrementAndGet();
+				i--;
+				// indexes after the removed one moved
+				for (Map.Entry<String, Integer> entry : last.entrySet()) {
+					if (entry.getValue() > previousIndex) {
+						entry.setValue(entry.getValue() - 1);
+					}
+				}
+				last.put(declaration.property, i);
+			}
+		}
+	}
+
+	/**
+	 * @return  Whether every browser understands a value, so there's
+	 *          no fallback for it before it.
+	 */
+	private static boolean isUniversal(final String value) {
+		for (String token : VALUE_SEPARATOR.split(value.trim())) {
+			if (!UNIVERSAL_TOKEN.matcher(token).matches() &&
+					!UNIVERSAL_KEYWORDS.contains(token.toLowerCase())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return  Whether every browser understands a selector,
+	 *          i.e. it has no escapes and no newer pseudo classes.
+	 */
+	private static boolean isSafe(final String selector) {
+		if (selector.indexOf('\\') >= 0) {
+			return false;
+		}
+		for (int i = selector.indexOf(':'); i >= 0; i = selector.indexOf(':', i + 1)) {
+			int end = i + 1;
+			while (end < selector.length() &&
+					(Character.isLetterOrDigit(selector.charAt(end)) || selector.charAt(end) == '-')) {
+				end++;
+			}
+			if (!UNIVERSAL_PSEUDOS.contains(selector.substring(i + 1, end).toLowerCase())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static CssTree.Rule asRule(final CssTree.Node node) {
+		return node instanceof CssTree.Rule ? (CssTree.Rule) node : null;
+	}
+
+	private static String getBlock(final CssTree.Rule rule) {
+		StringBuilder sb = new StringBuilder();
+		rule.appendDeclarations(sb);
+		return sb.toString();
+	}
+
+}
@@ -9,12 +9,29 @@ package ru.artlebedev.csscompressor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 
 public class Utils {
 
+  /**
+   * Files of this size and bigger are memory-mapped rather than read
+   * into a heap buffer. Mapping has a fixed setup cost and keeps a file
+   * mapped until the buffer is collected, so it only pays off for big files.
+   */
+  static final long MAP_THRESHOLD_BYTES = 1024 * 1024;
+
   private Utils() {}
 
 
@@ -26,23 +43,58 @@ public class Utils {
       throws IOException {
 
     FileInputStream fileStream = new FileInputStream(path);
-    InputStreamReader inputStream = new InputStreamReader(fileStream, charset);
+    FileChannel channel = fileStream.getChannel();
 
     try {
-      StringBuilder sb = new StringBuilder();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File is too big to be read: " + path);
+      }
 
-      int c;
-      while ((c = inputStream.read()) != -1) {
-        sb.append((char) c);
+      ByteBuffer bytes;
+      if (size >= MAP_THRESHOLD_BYTES) {
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } else {
+        bytes = ByteBuffer.allocate((int) size);
+        while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+          // read until the buffer is full
+        }
+        bytes.flip();
       }
 
-      return sb.toString();
+      return decode(bytes, charset);
     } finally {
-      inputStream.close();
+      channel.close();
       fileStream.close();
     }
   }
 
+  /**
+   * Decodes all bytes in one go. Malformed input is replaced
+   * the same way InputStreamReader does it.
+   */
+  static String decode(final ByteBuffer bytes, final String charset)
+      throws CharacterCodingException {
+
+    CharsetDecoder decoder = Charset.forName(charset).newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    CharBuffer chars = CharBuffer.allocate(
+        (int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+
+    CoderResult result = decoder.decode(bytes, chars, true);
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+    result = decoder.flush(chars);
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+
+    return new String(chars.array(), 0, chars.position());
+  }
+
 
   public static void writeToFile(final String path, final String content)
       throws IOException {
@@ -68,6 +120,58 @@ public class Utils {
 
 
 
+  /**
+   * Appends a value as a JSON string literal, null as null.
+   */
+  static void appendJsonString(final StringBuilder sb, final String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+
+  public static String sha1Hex(final String content) {
+    try {
+      return sha1Hex(content.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static String sha1Hex(final byte[] content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      return toHex(digest.digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static String toHex(final byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+
+
+
   /**
    * @return  If element is a JsonPrimitive that corresponds to a string, then
    *          return the value of that string; otherwise, return null.